@@ -0,0 +1,41 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.models.Contact;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.mail.internet.InternetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting a Contact the first time (parse, encode and validate) and every time after that.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContactBenchmark {
+
+    private final Contact contact = new Contact("jim@jimboson.com", "Jim Jimboson");
+
+    @Benchmark
+    public InternetAddress firstConversion() {
+        return Contact.toInternetAddress(new Contact("jim@jimboson.com", "Jim Jimboson"));
+    }
+
+    @Benchmark
+    public InternetAddress cachedConversion() {
+        return Contact.toInternetAddress(contact);
+    }
+
+}
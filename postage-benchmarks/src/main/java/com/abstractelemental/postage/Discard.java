@@ -0,0 +1,27 @@
+package com.abstractelemental.postage;
+
+import java.io.OutputStream;
+
+/**
+ * Counts what is written to it and throws it away, standing in for the SMTP DATA stream.
+ */
+
+final class Discard extends OutputStream {
+
+    private long count;
+
+    @Override
+    public void write(final int b) {
+        count++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+        count += len;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.mime.ByteBufferDataSource;
+import com.abstractelemental.postage.mime.EncodedPartCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base64 encoding the same attachment into message after message, with and without the shared
+ * encoded part cache.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodingBenchmark {
+
+    @Param({"16384", "1048576"})
+    public int attachmentSize;
+
+    @Param({"false", "true"})
+    public boolean sharedParts;
+
+    private Session session;
+    private Parcel parcel;
+    private EncodedPartCache cache;
+
+    @Setup
+    public void setup() throws Exception {
+        session = Session.getInstance(new Properties());
+        cache = new EncodedPartCache(32L * 1024 * 1024, false);
+
+        final ByteBuffer attachment = ByteBuffer.wrap(Fixtures.randomBytes(attachmentSize));
+        parcel = new Parcel(new InternetAddress("postage-test@abstractelemetal.com"),
+                new InternetAddress[]{new InternetAddress("jim@jimboson.com")}, new InternetAddress[0],
+                new InternetAddress[0], "Terms and conditions", "Please find our terms attached", null, null,
+                Collections.singletonList(new Parcel.Enclosure(new ByteBufferDataSource(attachment, "terms.pdf",
+                        "application/pdf"), "terms.pdf", "The small print")));
+    }
+
+    @Benchmark
+    public long write() throws Exception {
+        final MimeMessage message = parcel.toMimeMessage(session);
+        if (sharedParts) {
+            cache.share(message);
+        }
+        message.saveChanges();
+
+        final Discard out = new Discard();
+        message.writeTo(out);
+        return out.getCount();
+    }
+
+}
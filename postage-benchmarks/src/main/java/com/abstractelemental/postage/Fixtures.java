@@ -0,0 +1,76 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.models.SMTPSettings;
+import freemarker.template.TemplateException;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Templates, views and content shared by the benchmarks.
+ */
+
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * The Post Office's own template cache, loading the benchmark templates with the default settings.
+     */
+    static Templates templates() throws IOException {
+        final SMTPSettings settings = new SMTPSettings();
+        settings.setClassForTemplateLoading(Fixtures.class);
+        return new Templates(settings);
+    }
+
+    static Map<String, Object> hello(final String name) {
+        final Map<String, Object> view = new HashMap<>();
+        view.put("name", name);
+        return view;
+    }
+
+    /**
+     * A newsletter of the given number of stories, a few KB of HTML for a dozen of them.
+     */
+    static Map<String, Object> newsletter(final String name, final int stories) {
+        final List<Map<String, Object>> items = new ArrayList<>();
+        for (int i = 0; i < stories; i++) {
+            final Map<String, Object> story = new HashMap<>();
+            story.put("title", "Story #" + i + ": the fish that got away");
+            story.put("body", "It was this big, and it was last seen heading for the open sea. "
+                    + "Nobody has heard from it since, but the postman swears it left a forwarding address.");
+            items.add(story);
+        }
+
+        final Map<String, Object> view = hello(name);
+        view.put("subject", "The weekly catch");
+        view.put("stories", items);
+        return view;
+    }
+
+    static ByteBuffer render(final String template, final Object view) throws IOException, TemplateException {
+        final StringWriter out = new StringWriter();
+        try (Templates templates = templates()) {
+            templates.get(template).process(view, out);
+        }
+        return ByteBuffer.wrap(out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Incompressible bytes, like the images and PDFs that usually get attached.
+     */
+    static byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+}
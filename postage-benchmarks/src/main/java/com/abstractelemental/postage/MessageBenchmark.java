@@ -0,0 +1,81 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.mime.ByteBufferDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the MIME message of a plain, HTML and multipart email on the delivery thread, and writing
+ * it out as it would go to the relay. Lives in the Postage package to get at the package-private
+ * {@link Parcel}.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBenchmark {
+
+    @Param({"plain", "html", "multipart"})
+    public String kind;
+
+    private Session session;
+    private Parcel parcel;
+
+    @Setup
+    public void setup() throws Exception {
+        session = Session.getInstance(new Properties());
+
+        ByteBuffer html = null;
+        String htmlEncoding = null;
+        if (!"plain".equals(kind)) {
+            html = Fixtures.render("newsletter.ftl", Fixtures.newsletter("Jim", 12));
+            htmlEncoding = Parcel.encodingOf(html);
+        }
+
+        final List<Parcel.Enclosure> enclosures = "multipart".equals(kind) ? Collections.singletonList(
+                new Parcel.Enclosure(new ByteBufferDataSource(ByteBuffer.wrap(Fixtures.randomBytes(64 * 1024)),
+                        "patrick.gif", "image/gif"), "patrick.gif", "Fancy gif!")) : Collections.emptyList();
+
+        parcel = new Parcel(new InternetAddress("postage-test@abstractelemetal.com"),
+                new InternetAddress[]{new InternetAddress("jim@jimboson.com", "Jim Jimboson")},
+                new InternetAddress[]{new InternetAddress("fred@fakerson.xyz")},
+                new InternetAddress[0], "The weekly catch", "I wish I Wish I was a fish", html, htmlEncoding,
+                enclosures);
+    }
+
+    @Benchmark
+    public MimeMessage build() throws Exception {
+        final MimeMessage message = parcel.toMimeMessage(session);
+        message.saveChanges();
+        return message;
+    }
+
+    @Benchmark
+    public long buildAndWrite() throws Exception {
+        final Discard out = new Discard();
+        build().writeTo(out);
+        return out.getCount();
+    }
+
+}
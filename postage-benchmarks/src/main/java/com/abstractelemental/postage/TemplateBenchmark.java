@@ -0,0 +1,77 @@
+package com.abstractelemental.postage;
+
+import freemarker.template.Template;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Freemarker rendering of a short greeting and of a newsletter, with the template resolved once
+ * (as a mail merge does) and looked up by name for every email (as a single send does), into a
+ * fresh StringWriter and into the pooled {@link RenderBuffer} the render stage uses.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemplateBenchmark {
+
+    @Param({"hello.ftl", "newsletter.ftl"})
+    public String template;
+
+    private Templates templates;
+    private Template resolved;
+    private Map<String, Object> view;
+
+    @Setup
+    public void setup() throws Exception {
+        templates = Fixtures.templates();
+        resolved = templates.get(template);
+        view = Fixtures.newsletter("Jim", 12);
+    }
+
+    @TearDown
+    public void tearDown() {
+        templates.close();
+    }
+
+    @Benchmark
+    public int render() throws Exception {
+        final StringWriter out = new StringWriter();
+        resolved.process(view, out);
+        return out.getBuffer().length();
+    }
+
+    @Benchmark
+    public int renderPooled() throws Exception {
+        final RenderBuffer out = RenderBuffer.get(0);
+        resolved.process(view, out);
+        final int length = out.encode().remaining();
+        out.release();
+        return length;
+    }
+
+    @Benchmark
+    public int lookupAndRender() throws Exception {
+        final StringWriter out = new StringWriter();
+        templates.get(template).process(view, out);
+        return out.getBuffer().length();
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.models.Contact;
+import com.abstractelemental.postage.models.Email;
+import com.abstractelemental.postage.models.PostageReceipt;
+import com.abstractelemental.postage.models.SMTPSettings;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Emails per second through a whole Post Office, rendering included, delivering to an in-process
+ * GreenMail server. The relay sits on loopback, so this measures Postage rather than the network.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ThroughputBenchmark {
+
+    private static final int BATCH = 100;
+    private static final int PORT = 3925;
+
+    @Param({"1", "4", "16"})
+    public int executorThreadCount;
+
+    private GreenMail greenMail;
+    private PostOffice postOffice;
+    private List<Email> batch;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        greenMail = new GreenMail(new ServerSetup(PORT, null, ServerSetup.PROTOCOL_SMTP));
+        greenMail.start();
+
+        final SMTPSettings settings = new SMTPSettings();
+        settings.setHost("localhost");
+        settings.setPort(PORT);
+        settings.setUsername("benchmark");
+        settings.setPassword("potato");
+        settings.setBounceEmailAddress("bounce@abstractelemental.com");
+        settings.setClassForTemplateLoading(PostOffice.class);
+        settings.setExecutorThreadCount(executorThreadCount);
+        settings.setRenderThreadCount(Math.max(1, executorThreadCount / 4));
+        postOffice = new PostOffice(settings);
+
+        batch = new ArrayList<>();
+        for (int i = 0; i < BATCH; i++) {
+            batch.add(Email.builder()
+                    .subject("The weekly catch #" + i)
+                    .plainBody("I wish I Wish I was a fish")
+                    .freemarkerTemplateFilename("newsletter.ftl")
+                    .freemarkerView(Fixtures.newsletter("Reader #" + i, 12))
+                    .recipient(new Contact("reader" + i + "@jimboson.com"))
+                    .from(new Contact("postage-test@abstractelemetal.com", "Abstract Elemental Open Source"))
+                    .build());
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void purge() throws Exception {
+        greenMail.purgeEmailFromAllMailboxes();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        postOffice.close();
+        greenMail.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int send() {
+        final List<PostageReceipt> receipts = postOffice.sendAll(batch).join();
+        for (final PostageReceipt receipt : receipts) {
+            if (!receipt.getSuccess()) {
+                throw new IllegalStateException("Delivery failed", receipt.getThrowable());
+            }
+        }
+        return receipts.size();
+    }
+
+}
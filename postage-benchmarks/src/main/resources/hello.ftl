@@ -0,0 +1,10 @@
+<!doctype html>
+<html lang="en">
+<head>
+    <meta charset="utf-8">
+    <title>This is a lazy email template</title>
+</head>
+<body>
+<h1>Hello ${name}</h1>
+</body>
+</html>
\ No newline at end of file
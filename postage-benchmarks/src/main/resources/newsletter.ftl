@@ -0,0 +1,17 @@
+<!doctype html>
+<html lang="en">
+<head>
+    <meta charset="utf-8">
+    <title>${subject}</title>
+</head>
+<body>
+<h1>Hello ${name}</h1>
+[#list stories as story]
+<article>
+    <h2>${story.title}</h2>
+    <p>${story.body}</p>
+    <a href="https://abstractelemental.com/stories/${story?index}">Read more</a>
+</article>
+[/#list]
+</body>
+</html>
@@ -0,0 +1,112 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.models.BulkReceipt;
+import com.abstractelemental.postage.models.Contact;
+import com.abstractelemental.postage.models.PostageReceipt;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BulkSend is the handle of a mail merge started with
+ * {@link PostOffice#sendBulk(String, com.abstractelemental.postage.models.Email, java.util.stream.Stream)}.
+ * The counters can be polled for progress while the merge runs, the receipt completes once the
+ * recipient stream is exhausted and every submitted email has been delivered or has failed.
+ */
+
+public class BulkSend {
+
+    private final Semaphore window;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Queue<Contact> failedRecipients = new ConcurrentLinkedQueue<>();
+    private final CompletableFuture<BulkReceipt> receipt = new CompletableFuture<>();
+    private final long startedAt = System.nanoTime();
+
+    // one for the recipient stream itself, plus one per email in flight
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    private volatile Throwable throwable;
+
+    BulkSend(final int window) {
+        this.window = new Semaphore(window);
+    }
+
+    /**
+     * Number of emails taken from the recipient stream so far.
+     */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Number of emails submitted that do not have a receipt yet.
+     */
+    public long getInFlight() {
+        return getSubmitted() - getDelivered() - getFailed();
+    }
+
+    public boolean isDone() {
+        return receipt.isDone();
+    }
+
+    /**
+     * The future always completes normally, check {@link BulkReceipt#getThrowable()} to tell whether
+     * the whole stream was sent.
+     */
+    public CompletableFuture<BulkReceipt> getReceipt() {
+        return receipt;
+    }
+
+    /**
+     * Waits for room in the window before the next email is taken from the stream.
+     */
+    void submit() throws InterruptedException {
+        window.acquire();
+        pending.incrementAndGet();
+        submitted.incrementAndGet();
+    }
+
+    void record(final PostageReceipt postageReceipt) {
+        if (postageReceipt.getSuccess()) {
+            delivered.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+            failedRecipients.addAll(postageReceipt.getFailedRecipients());
+        }
+
+        window.release();
+        arrive();
+    }
+
+    /**
+     * Called once the stream is exhausted, or has stopped early because of the throwable.
+     */
+    void finish(final Throwable throwable) {
+        this.throwable = throwable;
+        arrive();
+    }
+
+    private void arrive() {
+        if (pending.decrementAndGet() == 0) {
+            receipt.complete(new BulkReceipt(getSubmitted(), getDelivered(), getFailed(),
+                    new ArrayList<>(failedRecipients), Duration.ofNanos(System.nanoTime() - startedAt), throwable));
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.transport.SMTPReply;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * ConcurrencyLimiter adapts how many emails are delivered at once to what the relays can take, by
+ * additive increase and multiplicative decrease (AIMD) over windows of about one send per worker.
+ * <p>
+ * After a window in which every worker was sending and the relays kept up, the limit grows by one.
+ * When the relays push back it is cut: by a little when the average latency of the window has
+ * risen well above the best seen, meaning mail is queueing at the relay, and by half when too many
+ * sends failed with a 4xx reply or without any reply (timeouts, refused connections). The best
+ * latency slowly drifts up, so that a relay that has become slower for good becomes the new
+ * baseline rather than holding the limit down forever.
+ */
+
+@Slf4j
+class ConcurrencyLimiter {
+
+    private static final int MIN_WINDOW = 10;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double DROP_TOLERANCE = 0.05;
+    private static final double DROP_BACKOFF = 0.5;
+    private static final double BASELINE_DRIFT = 1.01;
+
+    private final int min;
+    private final int max;
+    private final IntConsumer onChange;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+
+    private volatile int limit;
+
+    // the current window, guarded by this
+    private int samples;
+    private int drops;
+    private long latency;
+    private double baseline = Double.MAX_VALUE;
+
+    /**
+     * @param initial  limit to start from
+     * @param min      lowest the limit goes
+     * @param max      highest the limit goes
+     * @param onChange called with the new limit whenever it changes, while holding the limiter
+     */
+    ConcurrencyLimiter(final int initial, final int min, final int max, final IntConsumer onChange) {
+        this.min = min;
+        this.max = Math.max(min, max);
+        this.limit = Math.max(this.min, Math.min(initial, this.max));
+        this.onChange = onChange;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Marks the start of a send.
+     *
+     * @return the start to pass to {@link #end(long, int)}
+     */
+    long start() {
+        peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a finished send.
+     *
+     * @param replyCode the relay answered with, {@link SMTPReply#OK} when it took the email
+     */
+    void end(final long start, final int replyCode) {
+        final long elapsed = System.nanoTime() - start;
+        inFlight.decrementAndGet();
+
+        synchronized (this) {
+            samples++;
+            latency += elapsed;
+            if (replyCode == SMTPReply.UNKNOWN || SMTPReply.isTransient(replyCode)) {
+                drops++;
+            }
+
+            if (samples >= Math.max(limit, MIN_WINDOW)) {
+                adjust();
+            }
+        }
+    }
+
+    /**
+     * Marks a send that never reached a relay as finished, without it counting towards the limit.
+     */
+    void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    private void adjust() {
+        final double average = (double) latency / samples;
+        final double dropRate = (double) drops / samples;
+        baseline = Math.min(baseline * BASELINE_DRIFT, average);
+
+        int next = limit;
+        if (dropRate > DROP_TOLERANCE) {
+            next = (int) (limit * DROP_BACKOFF);
+        } else if (average > baseline * LATENCY_TOLERANCE) {
+            next = (int) (limit * LATENCY_BACKOFF);
+        } else if (peak.get() >= limit) {
+            next = limit + 1;
+        }
+        next = Math.max(min, Math.min(next, max));
+
+        samples = 0;
+        drops = 0;
+        latency = 0L;
+        peak.set(inFlight.get());
+
+        if (next != limit) {
+            log.debug("Delivery concurrency {} -> {} (latency {} ms, {}% pushed back)", limit, next,
+                    Math.round(average / 1e6), Math.round(dropRate * 100));
+            limit = next;
+            onChange.accept(next);
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.models.Contact;
+import com.abstractelemental.postage.models.Email;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Consignment is an email whose envelope has more recipients than a relay takes in one SMTP
+ * transaction, split into chunks that are delivered, throttled and retried on their own. The MIME
+ * message is built and written out once, by whichever chunk is sent first, and every chunk sends
+ * those same bytes to its own recipients. Once every chunk has settled their outcomes are merged
+ * into a single receipt.
+ */
+
+class Consignment {
+
+    @Getter
+    private final Parcel parcel;
+
+    /**
+     * The MIME message written out, null until the first chunk is sent. Guarded by the consignment.
+     */
+    @Getter
+    @Setter
+    private byte[] bytes;
+
+    private final AtomicInteger pending;
+    private final AtomicInteger attempts = new AtomicInteger();
+    private final List<Contact> failedRecipients = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * The Message-ID the chunks were sent with, null if none was delivered.
+     */
+    @Getter
+    private volatile String messageId;
+
+    /**
+     * The failure of the first chunk that failed.
+     */
+    @Getter
+    private volatile Throwable throwable;
+
+    /**
+     * Whether a chunk was abandoned by a closing Post Office.
+     */
+    @Getter
+    private volatile boolean abandoned;
+
+    Consignment(final Parcel parcel, final int chunks) {
+        this.parcel = parcel;
+        this.pending = new AtomicInteger(chunks);
+    }
+
+    /**
+     * Splits every recipient of the email, copies included, into chunks of at most the given size.
+     * Recipients are grouped by domain, and a domain only spans several chunks when it has more
+     * recipients than fit in one, so each chunk goes to as few receiving servers as possible.
+     */
+    static List<List<Contact>> chunks(final Email email, final int size) {
+        final Map<String, List<Contact>> domains = new TreeMap<>();
+        for (final Contact contact : email.getAllRecipients()) {
+            final String address = contact.getEmail();
+            domains.computeIfAbsent(address.substring(address.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT),
+                    d -> new ArrayList<>()).add(contact);
+        }
+
+        final List<List<Contact>> chunks = new ArrayList<>();
+        List<Contact> chunk = new ArrayList<>(size);
+        for (final List<Contact> domain : domains.values()) {
+            if (domain.size() <= size && chunk.size() + domain.size() > size) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(size);
+            }
+            for (final Contact contact : domain) {
+                if (chunk.size() == size) {
+                    chunks.add(chunk);
+                    chunk = new ArrayList<>(size);
+                }
+                chunk.add(contact);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Records the outcome of one chunk.
+     *
+     * @param attempts the chunk took
+     * @return whether it was the last chunk to settle
+     */
+    boolean settle(final List<Contact> envelope, final boolean delivered, final String messageId,
+                   final Throwable throwable, final int attempts) {
+        this.attempts.accumulateAndGet(attempts, Math::max);
+        if (delivered) {
+            this.messageId = messageId;
+        } else {
+            failedRecipients.addAll(envelope);
+            if (this.throwable == null) {
+                this.throwable = throwable;
+            }
+        }
+        return pending.decrementAndGet() == 0;
+    }
+
+    /**
+     * Records a chunk the Post Office closed on, settled with {@link #settle} like any failed one.
+     */
+    void abandoned() {
+        abandoned = true;
+    }
+
+    /**
+     * Whether every chunk was delivered.
+     */
+    boolean isDelivered() {
+        return failedRecipients.isEmpty();
+    }
+
+    /**
+     * The most attempts any chunk took.
+     */
+    int getAttempts() {
+        return attempts.get();
+    }
+
+    List<Contact> getFailedRecipients() {
+        return new ArrayList<>(failedRecipients);
+    }
+
+}
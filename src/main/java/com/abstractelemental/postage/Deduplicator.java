@@ -0,0 +1,266 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.models.PostageReceipt;
+import com.abstractelemental.postage.transport.SMTPReply;
+import com.abstractelemental.postage.transport.TransactionFailedException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+/**
+ * Deduplicator remembers the idempotency keys of recently sent emails, so that an email sent again
+ * with the same key within the window is answered with the receipt of the first one instead of
+ * being delivered twice. Repeats of a send still in flight get its receipt once it settles. A send
+ * that failed is forgotten, so it can be tried again, unless the relay may have taken it (see
+ * {@link TransactionFailedException#isUncertain()}): repeats of those get the failed receipt too.
+ * <p>
+ * Keys live in a concurrent map bounded by the capacity, oldest evicted first, and expire a window
+ * after they were first sent. With a file, the key and Message-ID of every delivered email is
+ * appended to it and read back on start, so that repeats are caught across restarts too. Those are
+ * answered with a compact receipt holding the Message-ID.
+ */
+
+@Slf4j
+class Deduplicator implements AutoCloseable {
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final long window;
+    private final int capacity;
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+
+    private Writer journal;
+    private int appended;
+
+    /**
+     * @param window   milliseconds a key is remembered after it was first sent
+     * @param capacity most keys remembered, the oldest are forgotten first beyond it
+     * @param file     to remember the keys of delivered emails in across restarts, or null
+     */
+    Deduplicator(final long window, final int capacity, final Path file) throws IOException {
+        this.window = window;
+        this.capacity = capacity;
+        this.file = file;
+
+        if (file != null) {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            load();
+            rewrite();
+        }
+    }
+
+    /**
+     * Claims the key for an email about to be sent.
+     *
+     * @param receipt the future receipt of the email
+     * @return the receipt of the email first sent with the key, or null if this email is the first
+     */
+    CompletableFuture<PostageReceipt> claim(final String key, final CompletableFuture<PostageReceipt> receipt) {
+        final long now = System.currentTimeMillis();
+        final Entry entry = new Entry(key, receipt, now + window);
+
+        Entry existing;
+        while ((existing = entries.putIfAbsent(key, entry)) != null) {
+            if (!existing.isExpired(now)) {
+                // a copy, so that whoever sent the repeat cannot complete the original's future
+                return existing.receipt.thenApply(Function.identity());
+            }
+            entries.remove(key, existing);
+        }
+
+        order.add(entry);
+        evict(now);
+        return null;
+    }
+
+    /**
+     * Number of keys remembered.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Records the outcome of the email that claimed the key, before its future is completed so that
+     * the key is on file by the time anyone learns of the delivery.
+     *
+     * @param future the future the key was claimed with
+     */
+    void settle(final String key, final CompletableFuture<PostageReceipt> future, final PostageReceipt receipt) {
+        final Entry entry = entries.get(key);
+        if (entry == null || entry.receipt != future) {
+            // evicted, or claimed anew after it expired
+            return;
+        }
+
+        if (!receipt.getSuccess()) {
+            if (!(receipt.getThrowable() instanceof TransactionFailedException)
+                    || !((TransactionFailedException) receipt.getThrowable()).isUncertain()) {
+                entries.remove(entry.key, entry);
+            }
+            return;
+        }
+
+        entry.messageId = receipt.getMessageId();
+        if (file != null && entry.messageId != null) {
+            append(entry);
+        }
+    }
+
+    /**
+     * Forgets expired keys, and the oldest ones while there are more than the capacity. Keys are
+     * claimed in the order they expire, so only the head of the queue needs looking at.
+     */
+    private void evict(final long now) {
+        synchronized (order) {
+            Entry oldest;
+            while ((oldest = order.peek()) != null && (oldest.isExpired(now) || entries.size() > capacity)) {
+                order.poll();
+                entries.remove(oldest.key, oldest);
+            }
+        }
+    }
+
+    private synchronized void append(final Entry entry) {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journal.write(line(entry));
+            journal.flush();
+            // every key is written once, so the file holds about twice the live keys at most
+            if (++appended > Math.max(capacity, entries.size()) * 2) {
+                rewrite();
+            }
+        } catch (final IOException e) {
+            log.warn("Unable to record idempotency key, a repeat may be sent again after a restart", e);
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (final String line : lines.subList(Math.max(lines.size() - capacity, 0), lines.size())) {
+            final String[] fields = line.split(" ", 3);
+            if (fields.length < 3) {
+                // torn by a crash mid-write
+                continue;
+            }
+
+            final long expires;
+            final String key;
+            try {
+                expires = Long.parseLong(fields[0]);
+                key = new String(DECODER.decode(fields[1]), StandardCharsets.UTF_8);
+            } catch (final IllegalArgumentException e) {
+                continue;
+            }
+            if (expires > now) {
+                final Entry entry = new Entry(key, CompletableFuture.completedFuture(restored(fields[2])), expires);
+                entry.messageId = fields[2];
+                entries.put(key, entry);
+                order.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Replaces the file with the keys still remembered.
+     */
+    private synchronized void rewrite() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+
+        final long now = System.currentTimeMillis();
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (final Entry entry : order) {
+                if (entry.messageId != null && !entry.isExpired(now) && entries.get(entry.key) == entry) {
+                    out.write(line(entry));
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        journal = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        appended = 0;
+    }
+
+    private static String line(final Entry entry) {
+        return entry.expires + " " + ENCODER.encodeToString(entry.key.getBytes(StandardCharsets.UTF_8)) + " "
+                + entry.messageId + "\n";
+    }
+
+    /**
+     * The receipt of an email delivered before a restart, all that is known of it is its Message-ID.
+     */
+    private static PostageReceipt restored(final String messageId) {
+        return PostageReceipt.builder()
+                .success(Boolean.TRUE)
+                .messageId(messageId)
+                .failedRecipients(Collections.emptyList())
+                .metadata(Collections.emptyMap())
+                .replyCode(SMTPReply.OK)
+                .build();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journal.close();
+        } catch (final IOException e) {
+            log.warn("Unable to close the idempotency key file", e);
+        }
+        journal = null;
+    }
+
+    @RequiredArgsConstructor
+    private static final class Entry {
+
+        private final String key;
+        private final CompletableFuture<PostageReceipt> receipt;
+        private final long expires;
+
+        /**
+         * Set once the email has been delivered.
+         */
+        private volatile String messageId;
+
+        private boolean isExpired(final long now) {
+            return now >= expires;
+        }
+
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.models.OverflowPolicy;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.BiConsumer;
+
+/**
+ * OverflowHandler applies the configured {@link OverflowPolicy} when a stage's bounded queue is full.
+ * Tasks that end up not being run are handed to the reject function so their receipts can fail.
+ */
+
+@Slf4j
+class OverflowHandler implements RejectedExecutionHandler {
+
+    private final OverflowPolicy policy;
+    private final BiConsumer<SendTask, RejectedExecutionException> reject;
+
+    OverflowHandler(final OverflowPolicy policy, final BiConsumer<SendTask, RejectedExecutionException> reject) {
+        this.policy = policy;
+        this.reject = reject;
+    }
+
+    @Override
+    public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            reject(r, new RejectedExecutionException("The Post Office is closed"));
+            return;
+        }
+
+        switch (policy) {
+            case BLOCK:
+                try {
+                    executor.getQueue().put(r);
+                    // closed while waiting for room, its workers may be gone already
+                    if (executor.isShutdown() && executor.getQueue().remove(r)) {
+                        reject(r, new RejectedExecutionException("The Post Office is closed"));
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    reject(r, new RejectedExecutionException("Interrupted while waiting for room in the send queue", e));
+                }
+                break;
+            case DROP_OLDEST:
+                Runnable oldest;
+                while (!executor.getQueue().offer(r)) {
+                    // only the lane the email goes in is full, make room there
+                    oldest = executor.getQueue() instanceof PriorityLanes
+                            ? ((PriorityLanes) executor.getQueue()).pollLaneOf(r) : executor.getQueue().poll();
+                    if (oldest != null) {
+                        log.warn("Send queue is full, dropping the oldest queued email");
+                        reject(oldest, new RejectedExecutionException("Dropped from a full send queue"));
+                    }
+                }
+                break;
+            case REJECT:
+            default:
+                reject(r, new RejectedExecutionException("The send queue is full"));
+                break;
+        }
+    }
+
+    private void reject(final Runnable r, final RejectedExecutionException e) {
+        if (r instanceof SendTask) {
+            reject.accept((SendTask) r, e);
+        } else {
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.mime.ByteBufferDataSource;
+import com.abstractelemental.postage.models.Contact;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Parcel is an email as it waits for delivery: addresses resolved, the template rendered into UTF-8
+ * bytes and the attachments resolved to the DataSources they are read from. The MIME message is
+ * only built by {@link #toMimeMessage(Session)} on the delivery thread, right before it is written
+ * to the relay, and every part is streamed from its source as it is written. Whatever the size of
+ * its attachments, a queued parcel costs the email itself plus its rendered HTML.
+ * <p>
+ * A parcel may be one chunk of a {@link Consignment}, in which case it is only delivered to the
+ * recipients of its envelope.
+ */
+
+@RequiredArgsConstructor
+class Parcel {
+
+    private static final String UTF_8 = StandardCharsets.UTF_8.name();
+    private static final String HTML = "text/html; charset=" + UTF_8;
+    private static final String BASE64 = "base64";
+
+    private final InternetAddress from;
+    private final InternetAddress[] recipients;
+    private final InternetAddress[] carbonCopies;
+    private final InternetAddress[] blindCarbonCopies;
+    private final String subject;
+    private final String plainBody;
+    private final ByteBuffer html;
+    private final String htmlEncoding;
+    private final List<Enclosure> enclosures;
+
+    /**
+     * Recipients of the chunk, null when the parcel is not a chunk.
+     */
+    @Getter
+    private List<Contact> envelope;
+
+    @Getter
+    private Consignment consignment;
+
+    /**
+     * The Message-ID of the first attempt. Retries reuse it, so that if the relay did take a message
+     * whose reply was lost, the copy sent on retry can be recognised as the same message.
+     */
+    private volatile String messageId;
+
+    /**
+     * The same parcel as one chunk of the consignment, delivered to the given recipients only.
+     */
+    Parcel chunk(final Consignment consignment, final List<Contact> envelope) {
+        final Parcel chunk = new Parcel(from, recipients, carbonCopies, blindCarbonCopies, subject, plainBody, html,
+                htmlEncoding, enclosures);
+        chunk.consignment = consignment;
+        chunk.envelope = envelope;
+        return chunk;
+    }
+
+    /**
+     * Number of recipients, copies included.
+     */
+    int size() {
+        return recipients.length + carbonCopies.length + blindCarbonCopies.length;
+    }
+
+    /**
+     * The addresses of the chunk's envelope.
+     */
+    InternetAddress[] getEnvelopeAddresses() {
+        return envelope.stream().map(Contact::toInternetAddress).toArray(InternetAddress[]::new);
+    }
+
+    /**
+     * The transfer encoding the HTML will be written with, chosen once by looking at the rendered
+     * bytes so that writing the message never has to scan them again.
+     */
+    static String encodingOf(final ByteBuffer html) {
+        return MimeUtility.getEncoding(new ByteBufferDataSource(html, null, HTML));
+    }
+
+    /**
+     * The lower case domains of every recipient, copies included, or of the envelope of a chunk.
+     */
+    Set<String> getDomains() {
+        final Set<String> domains = new HashSet<>();
+        if (envelope != null) {
+            for (final Contact contact : envelope) {
+                final String email = contact.getEmail();
+                domains.add(email.substring(email.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT));
+            }
+            return domains;
+        }
+
+        for (final InternetAddress[] addresses : new InternetAddress[][]{recipients, carbonCopies, blindCarbonCopies}) {
+            for (final InternetAddress address : addresses) {
+                final String email = address.getAddress();
+                domains.add(email.substring(email.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT));
+            }
+        }
+        return domains;
+    }
+
+    MimeMessage toMimeMessage(final Session session) throws MessagingException {
+        final MimeMessage message = new MimeMessage(session) {
+            @Override
+            protected void updateMessageID() throws MessagingException {
+                if (messageId == null) {
+                    super.updateMessageID();
+                    messageId = getMessageID();
+                } else {
+                    setHeader("Message-ID", messageId);
+                }
+            }
+        };
+        message.setFrom(from);
+        message.setRecipients(Message.RecipientType.TO, recipients);
+        message.setRecipients(Message.RecipientType.CC, carbonCopies);
+        message.setRecipients(Message.RecipientType.BCC, blindCarbonCopies);
+        message.setSubject(subject, UTF_8);
+        message.setSentDate(new Date());
+
+        if (enclosures.isEmpty()) {
+            setBody(message);
+        } else {
+            final MimeMultipart mixed = new MimeMultipart();
+            final MimeBodyPart body = new MimeBodyPart();
+            setBody(body);
+            mixed.addBodyPart(body);
+
+            for (final Enclosure enclosure : enclosures) {
+                mixed.addBodyPart(attachment(enclosure));
+            }
+            message.setContent(mixed);
+        }
+
+        return message;
+    }
+
+    /**
+     * Plain text only, HTML only, or plain text and HTML as alternatives.
+     */
+    private void setBody(final MimePart part) throws MessagingException {
+        if (html == null) {
+            part.setText(plainBody != null ? plainBody : "", UTF_8);
+        } else if (plainBody == null) {
+            setHtml(part);
+        } else {
+            final MimeBodyPart textPart = new MimeBodyPart();
+            textPart.setText(plainBody, UTF_8);
+            final MimeBodyPart htmlPart = new MimeBodyPart();
+            setHtml(htmlPart);
+
+            final MimeMultipart alternative = new MimeMultipart("alternative");
+            alternative.addBodyPart(textPart);
+            alternative.addBodyPart(htmlPart);
+            part.setContent(alternative);
+        }
+    }
+
+    private void setHtml(final MimePart part) throws MessagingException {
+        part.setDataHandler(new DataHandler(new ByteBufferDataSource(html, null, HTML)));
+        part.setHeader("Content-Transfer-Encoding", htmlEncoding);
+    }
+
+    private static MimeBodyPart attachment(final Enclosure enclosure) throws MessagingException {
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(enclosure.getDataSource()));
+        part.setDisposition(Part.ATTACHMENT);
+        try {
+            part.setFileName(MimeUtility.encodeText(enclosure.getName()));
+        } catch (final UnsupportedEncodingException e) {
+            throw new MessagingException("Unable to encode the attachment name " + enclosure.getName(), e);
+        }
+        part.setDescription(enclosure.getDescription());
+
+        // base64 is safe for anything, deciding otherwise would mean reading the attachment twice
+        part.setHeader("Content-Transfer-Encoding", BASE64);
+        return part;
+    }
+
+    /**
+     * An attachment resolved to where its content will be read from.
+     */
+    @AllArgsConstructor
+    @Getter
+    static final class Enclosure {
+
+        private final DataSource dataSource;
+        private final String name;
+        private final String description;
+
+    }
+
+}
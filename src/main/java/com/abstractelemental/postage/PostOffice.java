@@ -1,67 +1,183 @@
 package com.abstractelemental.postage;
 
+import com.abstractelemental.postage.metrics.PostageMetrics;
+import com.abstractelemental.postage.metrics.SendOutcome;
+import com.abstractelemental.postage.metrics.SendPhase;
+import com.abstractelemental.postage.mime.EncodedPartCache;
 import com.abstractelemental.postage.models.Attachment;
+import com.abstractelemental.postage.models.BulkRecipient;
 import com.abstractelemental.postage.models.Contact;
+import com.abstractelemental.postage.models.DrainReport;
+import com.abstractelemental.postage.models.Email;
+import com.abstractelemental.postage.models.OverflowPolicy;
 import com.abstractelemental.postage.models.PostageReceipt;
+import com.abstractelemental.postage.models.Priority;
 import com.abstractelemental.postage.models.SMTPSettings;
+import com.abstractelemental.postage.outbox.Outbox;
+import com.abstractelemental.postage.transport.PostageTransport;
+import com.abstractelemental.postage.transport.RelayThrottledException;
+import com.abstractelemental.postage.transport.SMTPConnectionPool;
+import com.abstractelemental.postage.transport.SMTPRouter;
+import com.abstractelemental.postage.transport.SMTPReply;
+import com.abstractelemental.postage.transport.TransactionFailedException;
 import freemarker.template.*;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
-import net.jodah.failsafe.Failsafe;
+import net.jodah.failsafe.Execution;
 import net.jodah.failsafe.RetryPolicy;
-import org.apache.commons.mail.*;
+import org.apache.commons.mail.EmailException;
 
+import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Optional;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * PostOffice is the central hub of Postage. It takes settings, success and failure callbacks and
  * ultimately sends your emails.
+ * <p>
+ * Sending is pipelined in two stages, each with its own worker pool: the render stage renders the
+ * Freemarker template and resolves addresses and attachments, the delivery stage builds the MIME
+ * message and streams it to the least loaded healthy SMTP relay. The thread calling
+ * {@link #send(Email)} only pays for the enqueue.
  */
 
 @Slf4j
 public class PostOffice implements AutoCloseable {
 
-    private final ExecutorService executor;
+    private final Stage renderStage;
+    private final Stage deliveryStage;
     private final SMTPSettings settings;
-    private final Configuration freemarkerConfiguration;
+    private final PostageTransport relays;
+    private final Throttle throttle;
+    private final Outbox outbox;
+    private final Deduplicator deduplicator;
+    private final ConcurrencyLimiter limiter;
+    private final EncodedPartCache encodedParts;
+    private final ScheduledExecutorService retryTimer;
+    private final ExecutorService merges;
+    private final AtomicInteger inDelivery = new AtomicInteger();
+    private final Set<SendTask> waiting = ConcurrentHashMap.newKeySet();
+    private final Set<CompletableFuture<PostageReceipt>> abandoned = ConcurrentHashMap.newKeySet();
+    private final Templates templates;
+    private final PostageMetrics metrics;
+
+    private volatile boolean renderingFinished;
+    private volatile boolean closing;
+
+    private static final long REQUEUE_DELAY_MILLIS = 50L;
+    private static final int PARALLEL_ADDRESS_THRESHOLD = 512;
+    private static final AtomicInteger BULK_SENDS = new AtomicInteger();
 
     private RetryPolicy retryPolicy;
     private Consumer<PostageReceipt> successCallback;
     private Consumer<PostageReceipt> failureCallback;
+    private Executor callbackExecutor;
 
+    @SneakyThrows({EmailException.class, IOException.class})
     public PostOffice(final SMTPSettings settings) {
         this.settings = settings;
-        executor = Executors.newFixedThreadPool(settings.getExecutorThreadCount());
+        metrics = settings.getMetrics() != null ? settings.getMetrics() : PostageMetrics.NONE;
+        relays = settings.getTransport() != null ? settings.getTransport() : new SMTPRouter(settings);
+        templates = new Templates(settings);
+        throttle = new Throttle(settings);
+        outbox = settings.getOutboxDirectory() != null ? new Outbox(Paths.get(settings.getOutboxDirectory()),
+                settings.getOutboxSegmentSize(), settings.getOutboxFlushInterval()) : null;
+        deduplicator = settings.getDeduplicationWindow() > 0 ? new Deduplicator(settings.getDeduplicationWindow(),
+                settings.getDeduplicationCapacity(), settings.getDeduplicationFile() != null
+                ? Paths.get(settings.getDeduplicationFile()) : null) : null;
+        encodedParts = settings.getEncodedPartCacheSize() > 0 ? new EncodedPartCache(
+                settings.getEncodedPartCacheSize(), settings.isEncodedPartCacheOffHeap()) : null;
+        retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "postage-retry-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        merges = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "postage-bulk-" + BULK_SENDS.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Runnable closeDelivery = () -> {
+            retryTimer.shutdownNow();
+            // only left when close(Duration) cut delivery short
+            abandonWaiting(null);
+            relays.close();
+            if (outbox != null) {
+                outbox.close();
+            }
+            if (deduplicator != null) {
+                deduplicator.close();
+            }
+        };
+        // JavaMail's transport sends under its own monitor, which would pin every carrier thread
+        final boolean pinning = settings.getTransport() == null && !SMTPConnectionPool.usesNativeTransport(settings);
+        if (settings.isVirtualThreads() && VirtualThreads.isSupported() && !pinning) {
+            // the connection pools cap the concurrency, one virtual thread per connection
+            deliveryStage = new Stage(relays.getCapacity(), new PriorityLanes(settings.getLaneCapacity()),
+                    VirtualThreads.factory("delivery"), closeDelivery);
+        } else {
+            if (settings.isVirtualThreads()) {
+                log.warn(pinning ? "Virtual threads require the native transport, delivering on {} platform threads"
+                        : "Virtual threads require Java 21, delivering on {} platform threads",
+                        settings.getExecutorThreadCount());
+            }
+            deliveryStage = new Stage("delivery", settings.getExecutorThreadCount(),
+                    new PriorityLanes(settings.getLaneCapacity()), closeDelivery);
+        }
+        deliveryStage.setRejectedExecutionHandler(new OverflowHandler(OverflowPolicy.BLOCK, this::rejectDelivery));
+        if (settings.isAdaptiveConcurrency()) {
+            // more senders than connections would only wait for one
+            limiter = new ConcurrencyLimiter(deliveryStage.getCorePoolSize(), settings.getMinConcurrency(),
+                    Math.min(settings.getMaxConcurrency(), relays.getCapacity()), deliveryStage::resize);
+            deliveryStage.resize(limiter.getLimit());
+        } else {
+            limiter = null;
+        }
+        renderStage = new Stage("render", settings.getRenderThreadCount(),
+                new PriorityLanes(settings.getLaneCapacity()), () -> {
+            renderingFinished = true;
+            templates.close();
+            shutdownDeliveryWhenDrained();
+        });
+        renderStage.setRejectedExecutionHandler(new OverflowHandler(settings.getOverflowPolicy(), this::reject));
 
         if (settings.isRetryOnFailure()) {
             retryPolicy = new RetryPolicy()
-                    .retryOn(EmailException.class)
-                    .withDelay(5, TimeUnit.SECONDS)
+                    .retryOn(PostOffice::isRetryable)
+                    .withBackoff(settings.getRetryDelay(), settings.getRetryMaxDelay(), TimeUnit.MILLISECONDS)
+                    .withJitter(settings.getRetryJitter())
                     .withMaxRetries(settings.getRetryCount());
         }
 
-        final Version freemarkerVersion = Configuration.getVersion();
-        freemarkerConfiguration = new Configuration(freemarkerVersion);
-        freemarkerConfiguration.setObjectWrapper(new DefaultObjectWrapperBuilder(freemarkerVersion).build());
-        freemarkerConfiguration.loadBuiltInEncodingMap();
-        freemarkerConfiguration.setDefaultEncoding(StandardCharsets.UTF_8.name());
-        freemarkerConfiguration.setTagSyntax(Configuration.SQUARE_BRACKET_TAG_SYNTAX);
-        freemarkerConfiguration.setClassForTemplateLoading(
-                settings.getClassForTemplateLoading() != null ? settings.getClassForTemplateLoading() : this.getClass(),
-                "/");
-
+        metrics.register(this);
+        if (outbox != null) {
+            replay();
+        }
     }
 
     /**
@@ -81,7 +197,25 @@ public class PostOffice implements AutoCloseable {
     }
 
     /**
-     * Send converts the Postage Email to a format that Apache Commons understands. From here the
+     * Same as {@link #PostOffice(SMTPSettings, Consumer, Consumer)}, but callbacks and the futures
+     * returned by {@link #sendAsync(Email)} are run on the
+     * given executor instead of on the SMTP delivery threads. The Post Office does not shut the
+     * executor down.
+     *
+     * @param settings         representing your email environment
+     * @param successCallback  function that consumes a PostageReceipt object
+     * @param failureCallback  function that consumes a PostageReceipt object
+     * @param callbackExecutor executor to run callbacks on
+     */
+    public PostOffice(final SMTPSettings settings, final Consumer<PostageReceipt> successCallback,
+                      final Consumer<PostageReceipt> failureCallback, final Executor callbackExecutor) {
+        this(settings, successCallback, failureCallback);
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Send queues the Postage Email on the render stage, where it is converted to a format that
+     * Apache Commons understands, and from there on the delivery stage. From here the email
      * can take multiple paths. If the SMTP settings have retry of failure enabled, this method will
      * attempt to send your email up to the number of times defined in the settings (retry on
      * failure is on by default with 5 retries).
@@ -93,130 +227,746 @@ public class PostOffice implements AutoCloseable {
      *
      * @param email to send
      */
-    public void send(final com.abstractelemental.postage.models.Email email) {
-        convertToCommons(email).ifPresent(commonsEmail -> executor.submit(() -> {
-            log.debug("Sending email: " + email.toString());
-            if (retryPolicy != null) {
-                sendWithRetry(email, commonsEmail);
-            } else {
-                sendWithoutRetry(email, commonsEmail);
-            }
-        }));
+    public void send(final Email email) {
+        sendAsync(email);
+    }
+
+    /**
+     * Same as {@link #send(Email)}, but returns a future that
+     * completes with the PostageReceipt once the email has been delivered or has definitively
+     * failed. The future always completes normally, check {@link PostageReceipt#getSuccess()} to
+     * tell the two apart.
+     * <p>
+     * When the send queue is full the {@link SMTPSettings#getOverflowPolicy()} applies: the caller
+     * waits, or this email or the oldest queued one gets a failure receipt right away.
+     * <p>
+     * If this Post Office was given a callback executor, the future is completed on it, so stages
+     * chained onto the future never run on an SMTP delivery thread.
+     * <p>
+     * An email with the idempotency key of one sent within the deduplication window is not sent, the
+     * future completes with the receipt of the first one and no callback is called.
+     *
+     * @param email to send
+     * @return future PostageReceipt
+     */
+    public CompletableFuture<PostageReceipt> sendAsync(final Email email) {
+        final CompletableFuture<PostageReceipt> receipt = new CompletableFuture<>();
+        final CompletableFuture<PostageReceipt> original = deduplicate(email, receipt);
+        if (original != null) {
+            return original;
+        }
+        renderStage.execute(new SendTask(email, receipt, journal(email), this::render));
+        return receipt;
+    }
+
+    /**
+     * Number of emails waiting to be rendered or delivered, not counting the ones being worked on.
+     */
+    public int getQueueDepth() {
+        return getRenderQueueDepth() + getDeliveryQueueDepth();
+    }
+
+    public int getRenderQueueDepth() {
+        return renderStage.getQueue().size();
+    }
+
+    public int getDeliveryQueueDepth() {
+        return deliveryStage.getQueue().size();
+    }
+
+    public int getActiveRenderThreads() {
+        return renderStage.getActiveCount();
+    }
+
+    public int getActiveDeliveryThreads() {
+        return deliveryStage.getActiveCount();
+    }
+
+    /**
+     * Most emails delivered at once, which changes over time with
+     * {@link SMTPSettings#isAdaptiveConcurrency()}.
+     */
+    public int getConcurrencyLimit() {
+        return limiter != null ? limiter.getLimit() : deliveryStage.getCorePoolSize();
+    }
+
+    /**
+     * Number of rendered emails that have not been delivered or failed yet, including the ones
+     * waiting for a retry.
+     */
+    public int getInDelivery() {
+        return inDelivery.get();
+    }
+
+    /**
+     * Number of SMTP connections currently sending.
+     */
+    public int getActiveConnections() {
+        return relays.getActiveCount();
+    }
+
+    /**
+     * Number of open SMTP connections waiting in the pools.
+     */
+    public int getIdleConnections() {
+        return relays.getIdleCount();
+    }
+
+    /**
+     * Number of SMTP relays that have not been taken out of rotation for failing.
+     */
+    public int getAvailableRelays() {
+        return relays.getAvailableCount();
+    }
+
+    /**
+     * Sends every email and returns a future that completes once all of them have a receipt. The
+     * receipts are in the iteration order of the collection.
+     *
+     * @param emails to send
+     * @return future PostageReceipts
+     */
+    public CompletableFuture<List<PostageReceipt>> sendAll(
+            final Collection<Email> emails) {
+        final List<CompletableFuture<PostageReceipt>> receipts = emails.stream().map(this::sendAsync).collect(
+                Collectors.toList());
+
+        return CompletableFuture.allOf(receipts.toArray(new CompletableFuture[0])).thenApply(
+                v -> receipts.stream().map(CompletableFuture::join).collect(Collectors.toList()));
     }
 
-    private void sendWithRetry(final com.abstractelemental.postage.models.Email email, final Email commonsEmail) {
-        Failsafe.with(retryPolicy).onSuccess(success -> {
-            log.debug("Email sent: " + success);
-            report(Boolean.TRUE, email, success.toString(), null);
-        }).onFailure(e -> log.error("Unable to send email!.", e)).onRetry((c, f, ctx) -> log.warn(
-                "Email sending attepmt #{} failed. Retrying...", ctx.getExecutions())).onRetriesExceeded(e -> {
-            log.error("Max retries exceeded!");
-            report(Boolean.FALSE, email, null, e);
-        }).get(commonsEmail::sendMimeMessage);
+    /**
+     * Parses the templates ahead of the first emails that use them, in parallel on the render
+     * stage. Call it at startup so that no send pays for parsing a template.
+     *
+     * @param templateNames Freemarker templates to parse
+     * @return future that completes once every template is parsed, or fails with the first template
+     * that could not be
+     */
+    public CompletableFuture<Void> warmUp(final Collection<String> templateNames) {
+        return templates.warmUp(templateNames, renderStage);
     }
 
-    private void sendWithoutRetry(final com.abstractelemental.postage.models.Email email, final Email commonsEmail) {
+    /**
+     * Sends the template to every recipient of the stream, rendered with each recipient's own
+     * freemarkerView. Every email is a copy of the envelope (subject, plain body, sender, copies,
+     * attachments and metadata) addressed to that recipient alone. Unless the envelope has a
+     * priority, the emails are sent with {@link Priority#LOW} so they never hold up other mail.
+     * <p>
+     * The template is resolved once for the whole merge and the rendering fans out over the render
+     * stage. The stream is read on a thread of the Post Office and only as fast as
+     * {@link SMTPSettings#getBulkWindow()} allows, so it can be backed by a cursor far larger than
+     * memory. The stream is closed once it has been read, or once the Post Office closes, which stops
+     * the merge early.
+     *
+     * @param templateName Freemarker template to render for every recipient
+     * @param envelope     what every email has in common, its recipients are ignored
+     * @param recipients   to send to
+     * @return handle to follow the progress and collect the BulkReceipt with
+     */
+    public BulkSend sendBulk(final String templateName, final Email envelope,
+                             final Stream<BulkRecipient> recipients) {
+        final BulkSend bulk = new BulkSend(settings.getBulkWindow());
         try {
-            final String res = commonsEmail.sendMimeMessage();
-            log.debug("Email sent: " + res);
-            report(Boolean.TRUE, email, res, null);
-        } catch (final EmailException e) {
-            log.error("Unable to send email!", e);
-            report(Boolean.FALSE, email, null, e);
+            merges.execute(() -> merge(templateName, envelope, recipients, bulk));
+        } catch (final RejectedExecutionException e) {
+            recipients.close();
+            bulk.finish(e);
         }
+        return bulk;
     }
 
-    private void report(final Boolean success, final com.abstractelemental.postage.models.Email email,
-                        final String messageId, final Throwable throwable) {
-        final PostageReceipt receipt = new PostageReceipt(success, email, messageId, throwable);
-
-        if (success && successCallback != null) {
-            successCallback.accept(receipt);
-        } else if (!success && failureCallback != null) {
-            failureCallback.accept(receipt);
+    private void merge(final String templateName, final Email envelope,
+                       final Stream<BulkRecipient> recipients, final BulkSend bulk) {
+        try (Stream<BulkRecipient> stream = recipients) {
+            final Template template = templates.get(templateName);
+            final Iterator<BulkRecipient> it = stream.iterator();
+
+            while (it.hasNext()) {
+                if (renderStage.isShutdown()) {
+                    throw new RejectedExecutionException("The Post Office is closed");
+                }
+
+                final BulkRecipient recipient = it.next();
+                final Email email = envelope.toBuilder()
+                        .clearRecipients()
+                        .recipient(recipient.getContact())
+                        .freemarkerTemplateFilename(templateName)
+                        .freemarkerView(recipient.getFreemarkerView())
+                        .metadata(recipient.getMetadata() != null ? recipient.getMetadata()
+                                : Collections.emptyMap())
+                        .priority(envelope.hasPriority() ? envelope.getPriority() : Priority.LOW)
+                        .build();
+
+                bulk.submit();
+                final CompletableFuture<PostageReceipt> receipt = new CompletableFuture<>();
+                receipt.thenAccept(bulk::record);
+                renderStage.execute(new SendTask(email, receipt, journal(email), t -> render(t, template)));
+            }
+            bulk.finish(null);
+        } catch (final IOException | InterruptedException | RuntimeException e) {
+            log.error("Bulk send of {} stopped early", templateName, e);
+            bulk.finish(e);
         }
     }
 
-    private Optional<Email> convertToCommons(final com.abstractelemental.postage.models.Email email) {
+    /**
+     * Journals the email in the outbox, if there is one, before it is queued. An email that cannot be
+     * journaled (usually because its view or metadata is not serializable) is still sent, it just
+     * will not survive a restart.
+     */
+    private long journal(final Email email) {
+        if (outbox == null) {
+            return SendTask.NOT_JOURNALED;
+        }
+
         try {
-            final Email e;
-
-            if (email.getFreemarkerTemplateFilename().isPresent() && email.getFreemarkerView().isPresent()) {
-                e = new HtmlEmail();
-            } else if (!email.getAttachments().isEmpty()) {
-                e = new MultiPartEmail();
-            } else {
-                e = new SimpleEmail();
+            return outbox.append(email);
+        } catch (final IOException e) {
+            log.warn("Unable to journal email in the outbox, it will not survive a restart", e);
+            return SendTask.NOT_JOURNALED;
+        }
+    }
+
+    /**
+     * @return the receipt of the email sent before with the same idempotency key, or null if this
+     * email is to be sent
+     */
+    private CompletableFuture<PostageReceipt> deduplicate(final Email email,
+                                                          final CompletableFuture<PostageReceipt> receipt) {
+        if (deduplicator == null || email.getIdempotencyKey() == null) {
+            return null;
+        }
+
+        final CompletableFuture<PostageReceipt> original = deduplicator.claim(email.getIdempotencyKey(), receipt);
+        if (original != null) {
+            log.debug("Email {} was sent already, answering with its receipt", email.getIdempotencyKey());
+            metrics.counted(SendOutcome.DUPLICATE, SMTPReply.UNKNOWN);
+        }
+        return original;
+    }
+
+    /**
+     * Queues the emails a previous Post Office journaled but never settled. Replay waits for room in
+     * the render queue regardless of the overflow policy, recovered mail is never shed.
+     */
+    @SneakyThrows(InterruptedException.class)
+    private void replay() {
+        for (final Map.Entry<Long, Email> entry : outbox.recover().entrySet()) {
+            final CompletableFuture<PostageReceipt> receipt = new CompletableFuture<>();
+            if (deduplicate(entry.getValue(), receipt) != null) {
+                // delivered before the crash, only settling it was lost
+                outbox.settle(entry.getKey());
+                continue;
             }
+            renderStage.getQueue().put(new SendTask(entry.getValue(), receipt, entry.getKey(), this::render));
+        }
+    }
 
-            e.setHostName(settings.getHost());
-            e.setSmtpPort(settings.getPort());
-            e.setAuthenticator(new DefaultAuthenticator(settings.getUsername(), settings.getPassword()));
-            e.setBounceAddress(settings.getBounceEmailAddress());
-            e.setStartTLSRequired(settings.isStartTLSRequired());
-            e.setSSLCheckServerIdentity(settings.isSslCheckServerIdentity());
-            e.setSSLOnConnect(settings.isSslOnConnect());
+    private void render(final SendTask task) {
+        render(task, null);
+    }
 
-            final Collection<InternetAddress> recipients = email.getRecipients().parallelStream().map(
-                    Contact::toInternetAddress).collect(Collectors.toList());
+    /**
+     * @param template already resolved for the email, or null to look it up by name
+     */
+    private void render(final SendTask rendering, final Template template) {
+        final Parcel parcel;
+        final long start = System.nanoTime();
+        try {
+            parcel = prepare(rendering.getEmail(), template);
+        } catch (final TemplateException | IOException | EmailException | RuntimeException e) {
+            log.error("Unable to prepare email", e);
+            metrics.counted(SendOutcome.FAILED, SMTPReply.UNKNOWN);
+            report(Boolean.FALSE, rendering, null, e);
+            return;
+        } finally {
+            metrics.timed(SendPhase.RENDER, System.nanoTime() - start);
+        }
 
-            final Collection<InternetAddress> carbonCopies = email.getCarbonCopies().parallelStream().map(
-                    Contact::toInternetAddress).collect(Collectors.toList());
+        // the parcel has everything delivery needs, a compact receipt needs no more than the envelope
+        final SendTask task = settings.isCompactReceipts() ? rendering.lighten() : rendering;
 
-            final Collection<InternetAddress> blindCarbonCopies = email.getBlindCarbonCopies().parallelStream().map(
-                    Contact::toInternetAddress).collect(Collectors.toList());
+        if (parcel.size() <= settings.getMaxRecipientsPerMessage()) {
+            final Execution execution = retryPolicy != null ? new Execution(retryPolicy) : null;
+            inDelivery.incrementAndGet();
+            deliveryStage.execute(task.delivering(parcel, t -> deliver(t, parcel, execution)));
+            return;
+        }
 
-            if (!recipients.isEmpty()) {
-                e.setTo(recipients);
-            }
+        // too many recipients for one transaction, every chunk is delivered and retried on its own
+        final List<List<Contact>> chunks = Consignment.chunks(task.getEmail(), settings.getMaxRecipientsPerMessage());
+        final Consignment consignment = new Consignment(parcel, chunks.size());
+        inDelivery.addAndGet(chunks.size());
+        for (final List<Contact> envelope : chunks) {
+            final Parcel chunk = parcel.chunk(consignment, envelope);
+            final Execution execution = retryPolicy != null ? new Execution(retryPolicy) : null;
+            deliveryStage.execute(task.delivering(chunk, t -> deliver(t, chunk, execution)));
+        }
+    }
+
+    private void reject(final SendTask task, final RejectedExecutionException e) {
+        log.error("Email was not queued: {}", e.getMessage());
+        metrics.counted(SendOutcome.REJECTED, SMTPReply.UNKNOWN);
+        report(Boolean.FALSE, task, null, e);
+    }
 
-            if (!carbonCopies.isEmpty()) {
-                e.setCc(carbonCopies);
+    private void rejectDelivery(final SendTask task, final RejectedExecutionException e) {
+        if (closing) {
+            abandon(task, true);
+            return;
+        }
+
+        log.error("Email was not queued for delivery: {}", e.getMessage());
+        metrics.counted(SendOutcome.REJECTED, SMTPReply.UNKNOWN);
+        completeDelivery(task, null, Boolean.FALSE, null, e, 0);
+    }
+
+    /**
+     * Makes one delivery attempt. A failed attempt that the retry policy allows to be retried is put
+     * back on the delivery queue by the retry timer once its backoff has passed, so delivery threads
+     * never sleep through a retry delay. An email over a rate limit waits on the retry timer the
+     * same way.
+     */
+    private void deliver(final SendTask task, final Parcel parcel, final Execution execution) {
+        final long wait = throttle.reserve(parcel);
+        if (wait > 0) {
+            log.debug("Rate limited, sending in {} ms", TimeUnit.NANOSECONDS.toMillis(wait));
+            later(task.then(t -> transmit(task, parcel, execution)), wait, TimeUnit.NANOSECONDS);
+        } else {
+            transmit(task, parcel, execution);
+        }
+    }
+
+    /**
+     * Hands the email to a relay once it is within the rate limits.
+     *
+     * @param task the delivery task, requeued as a whole for a retry
+     */
+    private void transmit(final SendTask task, final Parcel parcel, final Execution execution) {
+        final Email email = task.getEmail();
+        log.debug("Sending email: {}", email);
+
+        try {
+            final String messageId = send(parcel.getConsignment() != null
+                    ? toMimeMessage(parcel.getConsignment()) : toMimeMessage(parcel), parcel, email.getPriority());
+            log.debug("Email sent: {}", messageId);
+            throttle.delivered(parcel);
+            // the transport does not say which 2xx reply accepted it
+            metrics.counted(SendOutcome.DELIVERED, SMTPReply.UNKNOWN);
+            completeDelivery(task, parcel, Boolean.TRUE, messageId, null,
+                    execution != null ? execution.getExecutions() + 1 : 1);
+        } catch (final RelayThrottledException e) {
+            // every relay is at its rate limit, which is not a failed attempt
+            later(task.then(t -> transmit(task, parcel, execution)), e.getDelay(), TimeUnit.NANOSECONDS);
+        } catch (final EmailException | RuntimeException e) {
+            throttle.failed(parcel, SMTPReply.codeOf(e));
+            final boolean uncertain = isUncertain(email, e);
+            if (execution != null && !uncertain && execution.canRetryOn(e)) {
+                final long delay = execution.getWaitTime().toMillis();
+                final int replyCode = SMTPReply.codeOf(e);
+                log.warn("Email sending attempt #{} failed (reply code {}). Retrying in {} ms...",
+                        execution.getExecutions(), replyCode, delay);
+                metrics.counted(SendOutcome.RETRIED, replyCode);
+                later(task, delay, TimeUnit.MILLISECONDS);
+                return;
             }
 
-            if (!blindCarbonCopies.isEmpty()) {
-                e.setBcc(blindCarbonCopies);
+            if (uncertain) {
+                log.warn("Email {} may have been delivered, it is not retried", email.getIdempotencyKey());
+            } else if (execution != null && execution.getExecutions() > retryPolicy.getMaxRetries()) {
+                log.error("Max retries exceeded!");
             }
+            log.error("Unable to send email!", e);
+            metrics.counted(SendOutcome.FAILED, SMTPReply.codeOf(e));
+            // an uncertain attempt was never recorded by the execution
+            completeDelivery(task, parcel, Boolean.FALSE, null, e,
+                    execution != null ? execution.getExecutions() + (uncertain ? 1 : 0) : 1);
+        }
+    }
 
-            e.setFrom(email.getFrom().getEmail());
-            e.setSubject(email.getSubject());
-            e.setMsg(email.getPlainBody());
+    /**
+     * Hands the message to a relay, its latency and reply feeding the concurrency limiter.
+     */
+    private String send(final MimeMessage message, final Parcel parcel, final Priority priority)
+            throws EmailException {
+        if (limiter == null) {
+            return parcel.getConsignment() != null
+                    ? relays.send(message, parcel.getEnvelopeAddresses(), priority)
+                    : relays.send(message, priority);
+        }
 
-            if (e instanceof HtmlEmail) {
-                final Template template = freemarkerConfiguration.getTemplate(
-                        email.getFreemarkerTemplateFilename().get());
+        final long start = limiter.start();
+        try {
+            final String messageId = parcel.getConsignment() != null
+                    ? relays.send(message, parcel.getEnvelopeAddresses(), priority)
+                    : relays.send(message, priority);
+            limiter.end(start, SMTPReply.OK);
+            return messageId;
+        } catch (final RelayThrottledException e) {
+            limiter.cancel();
+            throw e;
+        } catch (final EmailException | RuntimeException e) {
+            limiter.end(start, SMTPReply.codeOf(e));
+            throw e;
+        }
+    }
 
-                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                final Writer out = new OutputStreamWriter(baos);
-                template.process(email.getFreemarkerView().get(), out);
-                final String html = baos.toString(StandardCharsets.UTF_8.name());
-                ((HtmlEmail) e).setHtmlMsg(html);
+    /**
+     * Puts the delivery task back on the delivery queue once the delay has passed. Until then the
+     * task is waiting, and a Post Office closing before it is requeued abandons it.
+     */
+    private void later(final SendTask task, final long delay, final TimeUnit unit) {
+        if (closing) {
+            abandon(task, true);
+            return;
+        }
+
+        waiting.add(task);
+        retryTimer.schedule(() -> {
+            if (waiting.remove(task)) {
+                requeue(task);
             }
+        }, delay, unit);
+    }
+
+    /**
+     * Runs on the retry timer, which must never block: if the delivery queue is full the retry waits
+     * a little longer instead.
+     */
+    private void requeue(final SendTask task) {
+        if (closing) {
+            abandon(task, true);
+        } else if (!deliveryStage.getQueue().offer(task)) {
+            later(task, REQUEUE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } else if (closing && deliveryStage.getQueue().remove(task)) {
+            // queued just after close(Duration) emptied the queue
+            abandon(task, true);
+        }
+    }
+
+    /**
+     * Whether the relay may have taken an email with an idempotency key although the attempt failed:
+     * sending it again could deliver it twice, which is what the key is there to prevent.
+     */
+    private static boolean isUncertain(final Email email, final Throwable throwable) {
+        return email.getIdempotencyKey() != null && throwable instanceof TransactionFailedException
+                && ((TransactionFailedException) throwable).isUncertain();
+    }
 
-            if (e instanceof MultiPartEmail && !email.getAttachments().isEmpty()) {
-                email.getAttachments().parallelStream().map(Attachment::toEmailAttachment).filter(Optional::isPresent).map(
-                        Optional::get).forEach(a -> PostOffice.attach(a, e));
+    /**
+     * Only retry transient failures: 4xx replies and failures without any reply code (connection
+     * refused, timeouts). A 5xx reply will be the same next time.
+     */
+    private static boolean isRetryable(final Throwable throwable) {
+        return throwable instanceof EmailException && !SMTPReply.isPermanent(SMTPReply.codeOf(throwable));
+    }
+
+    /**
+     * @param parcel   that was delivered, or null if it is not known
+     * @param attempts delivery attempts made, the last one included
+     */
+    private void completeDelivery(final SendTask task, final Parcel parcel, final Boolean success,
+                                  final String messageId, final Throwable throwable, final int attempts) {
+        final Consignment consignment = parcel != null ? parcel.getConsignment() : null;
+        if (consignment == null) {
+            report(success, task, messageId, throwable, success ? Collections.emptyList()
+                    : task.getEmail().getAllRecipients(), attempts);
+        } else if (consignment.settle(parcel.getEnvelope(), success, messageId, throwable, attempts)) {
+            // an abandoned email stays in the outbox, unless a replay would send some chunks twice
+            report(consignment.isDelivered(), consignment.isAbandoned() && consignment.getMessageId() == null
+                            ? task.unjournaled() : task, consignment.getMessageId(), consignment.getThrowable(),
+                    consignment.getFailedRecipients(), consignment.getAttempts());
+        }
+
+        if (inDelivery.decrementAndGet() == 0) {
+            shutdownDeliveryWhenDrained();
+        }
+    }
+
+    /**
+     * The delivery stage may only shut down once rendering has finished and no email is being
+     * delivered, including emails waiting on the retry timer.
+     */
+    private void shutdownDeliveryWhenDrained() {
+        if (renderingFinished && inDelivery.get() == 0) {
+            deliveryStage.shutdown();
+        }
+    }
+
+    private void report(final Boolean success, final SendTask task, final String messageId,
+                        final Throwable throwable) {
+        report(success, task, messageId, throwable,
+                success ? Collections.emptyList() : task.getEmail().getAllRecipients(), 0);
+    }
+
+    private void report(final Boolean success, final SendTask task, final String messageId,
+                        final Throwable throwable, final List<Contact> failedRecipients, final int attempts) {
+        if (task.isJournaled()) {
+            outbox.settle(task.getJournalId());
+        }
+
+        final Email email = task.getEmail();
+        final PostageReceipt receipt = PostageReceipt.builder()
+                .success(success)
+                .email(settings.isCompactReceipts() ? null : email)
+                .messageId(messageId)
+                .throwable(throwable)
+                .failedRecipients(failedRecipients)
+                .metadata(email.getMetadata())
+                .recipientCount(email.getRecipientCount())
+                .attempts(attempts)
+                .replyCode(success ? SMTPReply.OK : SMTPReply.codeOf(throwable))
+                .submitted(task.getSubmitted())
+                .elapsed(System.currentTimeMillis() - task.getSubmitted())
+                .build();
+        final CompletableFuture<PostageReceipt> future = task.getReceipt();
+        if (deduplicator != null && email.getIdempotencyKey() != null) {
+            deduplicator.settle(email.getIdempotencyKey(), future, receipt);
+        }
+
+        if (callbackExecutor != null) {
+            callbackExecutor.execute(() -> notify(receipt, future));
+        } else {
+            notify(receipt, future);
+        }
+    }
+
+    private void notify(final PostageReceipt receipt, final CompletableFuture<PostageReceipt> future) {
+        try {
+            if (receipt.getSuccess() && successCallback != null) {
+                successCallback.accept(receipt);
+            } else if (!receipt.getSuccess() && failureCallback != null) {
+                failureCallback.accept(receipt);
             }
+        } catch (final RuntimeException e) {
+            log.error("Postage receipt callback failed", e);
+        } finally {
+            future.complete(receipt);
+        }
+    }
+
+    /**
+     * Renders the template and resolves the addresses and attachments, everything that can fail
+     * because of the email itself, so that delivery only has the relay left to worry about.
+     */
+    private Parcel prepare(final Email email, final Template template)
+            throws TemplateException, IOException, EmailException {
+        if (email.getFrom() == null) {
+            throw new EmailException("From address required");
+        }
+        if (email.getRecipients().isEmpty() && email.getCarbonCopies().isEmpty()
+                && email.getBlindCarbonCopies().isEmpty()) {
+            throw new EmailException("At least one receiver address required");
+        }
 
-            e.buildMimeMessage();
+        ByteBuffer html = null;
+        String htmlEncoding = null;
+        if (email.getFreemarkerTemplateFilename().isPresent() && email.getFreemarkerView().isPresent()) {
+            html = process(template != null ? template : templates.get(email.getFreemarkerTemplateFilename().get()),
+                    email.getFreemarkerView().get());
+            htmlEncoding = Parcel.encodingOf(html);
+        }
 
-            return Optional.of(e);
-        } catch (final TemplateException | IOException | EmailException e) {
-            log.error("Unable to convert to Commons Email", e);
-            return Optional.empty();
+        final List<Parcel.Enclosure> enclosures = new ArrayList<>();
+        for (final Attachment attachment : email.getAttachments()) {
+            Attachment.toDataSource(attachment).ifPresent(dataSource -> enclosures.add(
+                    new Parcel.Enclosure(dataSource, attachment.getName(), attachment.getDescription())));
         }
+
+        return new Parcel(Contact.toInternetAddress(email.getFrom()), addresses(email.getRecipients()),
+                addresses(email.getCarbonCopies()), addresses(email.getBlindCarbonCopies()), email.getSubject(),
+                email.getPlainBody(), html, htmlEncoding, enclosures);
     }
 
-    @SneakyThrows(EmailException.class)
-    private static void attach(final EmailAttachment a, final Email e) {
-        ((MultiPartEmail) e).attach(a);
+    /**
+     * Contacts cache their address, so converting a handful of them is a few field reads. Only a
+     * list long enough to be building addresses for the first time is worth fanning out.
+     */
+    private static InternetAddress[] addresses(final Collection<Contact> contacts) {
+        if (contacts.size() >= PARALLEL_ADDRESS_THRESHOLD) {
+            return contacts.parallelStream().map(Contact::toInternetAddress).toArray(InternetAddress[]::new);
+        }
+
+        final InternetAddress[] addresses = new InternetAddress[contacts.size()];
+        int i = 0;
+        for (final Contact contact : contacts) {
+            addresses[i++] = Contact.toInternetAddress(contact);
+        }
+        return addresses;
+    }
+
+    /**
+     * Builds the MIME message on the delivery thread, just before it is written to the relay.
+     */
+    private MimeMessage toMimeMessage(final Parcel parcel) throws EmailException {
+        final long start = System.nanoTime();
+        try {
+            final MimeMessage message = parcel.toMimeMessage(relays.getSession());
+            if (encodedParts != null) {
+                encodedParts.share(message);
+            }
+            return message;
+        } catch (final MessagingException | IOException e) {
+            throw new EmailException("Unable to build the MIME message", e);
+        } finally {
+            metrics.timed(SendPhase.MIME_BUILD, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The message of a chunk, read back from the bytes of the consignment's MIME message. Those are
+     * built and written out by whichever chunk is sent first, then shared by all of them, so every
+     * chunk sends the same message without building or encoding it again.
+     */
+    private MimeMessage toMimeMessage(final Consignment consignment) throws EmailException {
+        try {
+            synchronized (consignment) {
+                if (consignment.getBytes() == null) {
+                    final MimeMessage message = toMimeMessage(consignment.getParcel());
+                    message.saveChanges();
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    // the envelope says who gets it, blind copies must not show in the headers
+                    message.writeTo(out, new String[]{"Bcc"});
+                    consignment.setBytes(out.toByteArray());
+                }
+            }
+            return new MimeMessage(relays.getSession(), new SharedByteArrayInputStream(consignment.getBytes()));
+        } catch (final MessagingException | IOException e) {
+            throw new EmailException("Unable to build the MIME message", e);
+        }
     }
 
+    /**
+     * @return the rendered template encoded as UTF-8
+     */
+    private ByteBuffer process(final Template template, final Object view)
+            throws IOException, TemplateException {
+        final RenderBuffer out = RenderBuffer.get(templates.sizeHint(template));
+        try {
+            template.process(view, out);
+            templates.rendered(template, out.length());
+            return out.encode();
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Stops accepting new emails. Emails already queued are still rendered and delivered, after which
+     * the delivery stage shuts down and the pooled SMTP connections are closed. Returns right away,
+     * see {@link #close(Duration)} to wait for that.
+     */
     @Override
     public void close() {
-        if (executor != null && !executor.isTerminated()) {
-            executor.shutdown();
+        merges.shutdown();
+        if (!renderStage.isShutdown()) {
+            renderStage.shutdown();
+        }
+    }
+
+    /**
+     * Same as {@link #close()}, but waits up to the timeout for every email already sent to be
+     * rendered and delivered, retries included. What is still queued or waiting for a retry at the
+     * deadline is abandoned: its receipt fails, and a journaled email stays in the outbox for the next
+     * Post Office to replay. An email split into chunks is only left there when none of its chunks was
+     * delivered, and its receipt lists the recipients of the abandoned chunks as failed. Emails being
+     * rendered or sent at the deadline are left to finish, they are not retried.
+     *
+     * @param timeout longest to wait for the Post Office to drain
+     * @return whether it drained, and the emails abandoned if it did not
+     */
+    public DrainReport close(final Duration timeout) {
+        final long start = System.nanoTime();
+        final long deadline = start + timeout.toNanos();
+        close();
+
+        boolean drained;
+        try {
+            drained = merges.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                    && renderStage.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                    && deliveryStage.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        if (drained) {
+            return new DrainReport(true, Collections.emptyList(), 0, Duration.ofNanos(System.nanoTime() - start));
+        }
+
+        // a merge waiting for its window gives up
+        merges.shutdownNow();
+
+        // from here on retries are abandoned rather than waited for, and once nothing is left in
+        // delivery the delivery stage shuts down as usual
+        closing = true;
+
+        final List<Email> undelivered = new ArrayList<>();
+        final List<Runnable> queued = new ArrayList<>();
+        renderStage.getQueue().drainTo(queued);
+        for (final Runnable r : queued) {
+            if (r instanceof SendTask && abandon((SendTask) r, false)) {
+                undelivered.add(((SendTask) r).getEmail());
+            }
+        }
+        queued.clear();
+        deliveryStage.getQueue().drainTo(queued);
+        for (final Runnable r : queued) {
+            if (r instanceof SendTask && abandon((SendTask) r, true)) {
+                undelivered.add(((SendTask) r).getEmail());
+            }
+        }
+        abandonWaiting(undelivered);
+
+        final int inFlight = renderStage.getActiveCount() + deliveryStage.getActiveCount();
+        log.warn("Post Office did not drain within {} ms, abandoned {} emails with {} still in flight",
+                timeout.toMillis(), undelivered.size(), inFlight);
+        return new DrainReport(false, undelivered, inFlight, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    /**
+     * Abandons the delivery tasks waiting on the retry timer.
+     *
+     * @param undelivered to add the emails abandoned to, or null
+     */
+    private void abandonWaiting(final List<Email> undelivered) {
+        for (final SendTask task : waiting) {
+            if (waiting.remove(task) && abandon(task, true) && undelivered != null) {
+                undelivered.add(task.getEmail());
+            }
+        }
+    }
+
+    /**
+     * Fails the email of a task the Post Office closed on, without settling it in the outbox. A chunk
+     * of a large envelope is settled with its consignment like a failed one, which reports the email
+     * once every chunk has settled, with the recipients of the abandoned chunks as failed.
+     *
+     * @param delivering whether the task is counted in {@link #getInDelivery()}
+     * @return whether the email was not abandoned before
+     */
+    private boolean abandon(final SendTask task, final boolean delivering) {
+        final boolean first = abandoned.add(task.getReceipt());
+        if (first) {
+            metrics.counted(SendOutcome.ABANDONED, SMTPReply.UNKNOWN);
+        }
+
+        final RejectedExecutionException closed =
+                new RejectedExecutionException("The Post Office closed before the email was delivered");
+        final Parcel parcel = task.getParcel();
+        if (parcel != null && parcel.getConsignment() != null) {
+            parcel.getConsignment().abandoned();
+            completeDelivery(task, parcel, Boolean.FALSE, null, closed, 0);
+            return first;
+        }
+
+        if (first) {
+            report(Boolean.FALSE, task.unjournaled(), null, closed);
+        }
+        if (delivering && inDelivery.decrementAndGet() == 0) {
+            shutdownDeliveryWhenDrained();
         }
+        return first;
     }
 
 }
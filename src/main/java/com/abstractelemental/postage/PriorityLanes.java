@@ -0,0 +1,302 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.models.Priority;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PriorityLanes is the queue of a {@link Stage}: one bounded FIFO lane per {@link Priority}, served
+ * by smooth weighted round robin. While several lanes have work, each is taken from in proportion
+ * to its weight and the lanes are interleaved rather than served in runs, so a high priority email
+ * is never more than a few emails away from a worker, however full the other lanes are.
+ * <p>
+ * Each lane has its own capacity, so a full low priority lane does not keep high priority emails
+ * out. Work that is not a {@link SendTask} goes in the normal lane.
+ */
+
+class PriorityLanes extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final int capacity;
+    private final List<ArrayDeque<Runnable>> lanes = new ArrayList<>();
+    private final int[] credit = new int[PRIORITIES.length];
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final List<Condition> notFull = new ArrayList<>();
+
+    private int count;
+
+    /**
+     * @param capacity of each lane
+     */
+    PriorityLanes(final int capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            lanes.add(new ArrayDeque<>());
+            notFull.add(lock.newCondition());
+        }
+    }
+
+    private static int laneOf(final Runnable r) {
+        return r instanceof SendTask ? ((SendTask) r).getEmail().getPriority().ordinal() : Priority.NORMAL.ordinal();
+    }
+
+    @Override
+    public boolean offer(final Runnable r) {
+        final int lane = laneOf(r);
+        lock.lock();
+        try {
+            if (lanes.get(lane).size() >= capacity) {
+                return false;
+            }
+            enqueue(lane, r);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(final Runnable r, final long timeout, final TimeUnit unit) throws InterruptedException {
+        final int lane = laneOf(r);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (lanes.get(lane).size() >= capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.get(lane).awaitNanos(nanos);
+            }
+            enqueue(lane, r);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(final Runnable r) throws InterruptedException {
+        final int lane = laneOf(r);
+        lock.lockInterruptibly();
+        try {
+            while (lanes.get(lane).size() >= capacity) {
+                notFull.get(lane).await();
+            }
+            enqueue(lane, r);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return count > 0 ? dequeue() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest work of the lane the given work would go in, to make room for it.
+     */
+    Runnable pollLaneOf(final Runnable r) {
+        final int lane = laneOf(r);
+        lock.lock();
+        try {
+            final Runnable oldest = lanes.get(lane).pollFirst();
+            if (oldest != null) {
+                count--;
+                notFull.get(lane).signal();
+            }
+            return oldest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            for (final ArrayDeque<Runnable> lane : lanes) {
+                if (!lane.isEmpty()) {
+                    return lane.peekFirst();
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        lock.lock();
+        try {
+            for (int i = 0; i < lanes.size(); i++) {
+                if (lanes.get(i).remove(o)) {
+                    count--;
+                    notFull.get(i).signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            long remaining = 0;
+            for (final ArrayDeque<Runnable> lane : lanes) {
+                remaining += capacity - lane.size();
+            }
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(final Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super Runnable> c, final int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && count > 0) {
+                c.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A snapshot, in lane order.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot = new ArrayList<>();
+        lock.lock();
+        try {
+            lanes.forEach(snapshot::addAll);
+        } finally {
+            lock.unlock();
+        }
+
+        final Iterator<Runnable> it = snapshot.iterator();
+        return new Iterator<Runnable>() {
+            private Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                return last = it.next();
+            }
+
+            @Override
+            public void remove() {
+                PriorityLanes.this.remove(last);
+            }
+        };
+    }
+
+    private void enqueue(final int lane, final Runnable r) {
+        lanes.get(lane).addLast(r);
+        count++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Smooth weighted round robin: every lane with work earns its weight in credit, the richest lane
+     * is served and pays back what all of them earned.
+     */
+    private Runnable dequeue() {
+        int best = -1;
+        int earned = 0;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            if (lanes.get(i).isEmpty()) {
+                // an idle lane does not save up credit for later
+                credit[i] = 0;
+                continue;
+            }
+            credit[i] += PRIORITIES[i].getWeight();
+            earned += PRIORITIES[i].getWeight();
+            if (best < 0 || credit[i] > credit[best]) {
+                best = i;
+            }
+        }
+
+        credit[best] -= earned;
+        count--;
+        notFull.get(best).signal();
+        return lanes.get(best).pollFirst();
+    }
+
+}
@@ -0,0 +1,147 @@
+package com.abstractelemental.postage;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * RenderBuffer is the Writer templates are rendered into: an unsynchronized char array kept per
+ * render thread, so a mail merge does not grow a fresh one for every recipient. Once the template
+ * is done the chars are encoded as UTF-8 straight into a byte array of exactly the right size,
+ * without going through a String or a worst case sized buffer.
+ * <p>
+ * A buffer grown past {@link #RETAINED} chars is let go after the render, so one huge email does
+ * not pin it for the life of the thread. Sized up front with the template's hint it is still only
+ * allocated once per render rather than doubled into place.
+ */
+
+final class RenderBuffer extends Writer {
+
+    private static final int INITIAL_SIZE = 8 * 1024;
+    private static final int RETAINED = 2 * 1024 * 1024;
+
+    private static final ThreadLocal<RenderBuffer> BUFFERS = ThreadLocal.withInitial(RenderBuffer::new);
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private char[] chars = new char[INITIAL_SIZE];
+    private int count;
+
+    private RenderBuffer() {
+    }
+
+    /**
+     * @param sizeHint chars the render is expected to take
+     * @return the empty buffer of the calling thread
+     */
+    static RenderBuffer get(final int sizeHint) {
+        final RenderBuffer buffer = BUFFERS.get();
+        buffer.count = 0;
+        buffer.ensureCapacity(sizeHint);
+        return buffer;
+    }
+
+    /**
+     * Lets go of the buffer of the calling thread if it grew too large to keep.
+     */
+    void release() {
+        if (chars.length > RETAINED) {
+            BUFFERS.remove();
+        }
+    }
+
+    int length() {
+        return count;
+    }
+
+    @Override
+    public void write(final int c) {
+        ensureCapacity(count + 1);
+        chars[count++] = (char) c;
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(cbuf, off, chars, count, len);
+        count += len;
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) {
+        ensureCapacity(count + len);
+        str.getChars(off, off + len, chars, count);
+        count += len;
+    }
+
+    @Override
+    public Writer append(final CharSequence csq) {
+        final String str = String.valueOf(csq);
+        write(str, 0, str.length());
+        return this;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return the rendered chars encoded as UTF-8, in a buffer with no slack
+     */
+    ByteBuffer encode() {
+        final ByteBuffer bytes = ByteBuffer.allocate(utf8Length());
+        encoder.reset();
+        final CharBuffer in = CharBuffer.wrap(chars, 0, count);
+        CoderResult result = encoder.encode(in, bytes, true);
+        if (!result.isError()) {
+            result = encoder.flush(bytes);
+        }
+        if (result.isError() || in.hasRemaining()) {
+            throw new IllegalStateException("Rendered template did not encode to its UTF-8 length");
+        }
+
+        bytes.flip();
+        return bytes;
+    }
+
+    /**
+     * Bytes the chars take as UTF-8, a lone surrogate being replaced by a single '?'.
+     */
+    private int utf8Length() {
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            final char c = chars[i];
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(chars[i + 1])) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(capacity, chars.length * 2));
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.models.Email;
+import com.abstractelemental.postage.models.PostageReceipt;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * SendTask is a queued unit of work for one email. Keeping the email and its receipt future next to
+ * the work lets a rejected or dropped task still be answered with a failure receipt, and settled in
+ * the outbox when it was journaled.
+ */
+
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@Getter
+class SendTask implements Runnable {
+
+    static final long NOT_JOURNALED = -1L;
+
+    private final Email email;
+    private final CompletableFuture<PostageReceipt> receipt;
+    private final long journalId;
+    private final Consumer<SendTask> work;
+
+    /**
+     * The parcel being delivered, null until the email has been rendered.
+     */
+    private final Parcel parcel;
+
+    /**
+     * When the email was sent, in milliseconds since the epoch.
+     */
+    private final long submitted;
+
+    SendTask(final Email email, final CompletableFuture<PostageReceipt> receipt, final long journalId,
+             final Consumer<SendTask> work) {
+        this(email, receipt, journalId, work, null, System.currentTimeMillis());
+    }
+
+    @Override
+    public void run() {
+        work.accept(this);
+    }
+
+    /**
+     * The same email handed on to the next piece of work.
+     */
+    SendTask then(final Consumer<SendTask> next) {
+        return new SendTask(email, receipt, journalId, next, parcel, submitted);
+    }
+
+    /**
+     * The same email handed on to the delivery of one parcel, the whole email or one chunk of it.
+     */
+    SendTask delivering(final Parcel parcel, final Consumer<SendTask> next) {
+        return new SendTask(email, receipt, journalId, next, parcel, submitted);
+    }
+
+    /**
+     * The same task holding only the envelope of its email, see {@link Email#toEnvelope()}, once the
+     * email has been rendered and nothing but its receipt needs the rest.
+     */
+    SendTask lighten() {
+        return new SendTask(email.toEnvelope(), receipt, journalId, work, parcel, submitted);
+    }
+
+    /**
+     * The same task as if it had never been journaled, so that reporting it leaves the email in the
+     * outbox for the next Post Office to replay.
+     */
+    SendTask unjournaled() {
+        return new SendTask(email, receipt, NOT_JOURNALED, work, parcel, submitted);
+    }
+
+    boolean isJournaled() {
+        return journalId != NOT_JOURNALED;
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.abstractelemental.postage;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stage is a worker pool of a set size for one step of the Post Office pipeline. Once a stage has been
+ * shut down and has finished its queued work it runs its termination hook, which is how each stage
+ * shuts down the stage that comes after it without {@link PostOffice#close()} having to block.
+ */
+
+class Stage extends ThreadPoolExecutor {
+
+    private final Runnable onTerminated;
+
+    Stage(final String name, final int threads, final BlockingQueue<Runnable> queue, final Runnable onTerminated) {
+        this(threads, queue, threadFactory(name), onTerminated);
+    }
+
+    Stage(final int threads, final BlockingQueue<Runnable> queue, final ThreadFactory threadFactory,
+          final Runnable onTerminated) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS, queue, threadFactory);
+        this.onTerminated = onTerminated;
+
+        // work offered straight to the queue (e.g. retries) must always find a worker
+        prestartAllCoreThreads();
+    }
+
+    /**
+     * Changes the number of workers. Surplus workers finish what they are running before they exit.
+     */
+    void resize(final int threads) {
+        if (threads > getMaximumPoolSize()) {
+            setMaximumPoolSize(threads);
+            setCorePoolSize(threads);
+            prestartAllCoreThreads();
+        } else {
+            setCorePoolSize(threads);
+            setMaximumPoolSize(threads);
+        }
+    }
+
+    @Override
+    protected void terminated() {
+        super.terminated();
+        onTerminated.run();
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> new Thread(r, "postage-" + name + "-" + count.incrementAndGet());
+    }
+
+}
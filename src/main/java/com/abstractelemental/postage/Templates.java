@@ -0,0 +1,217 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.models.SMTPSettings;
+import freemarker.cache.ClassTemplateLoader;
+import freemarker.cache.FileTemplateLoader;
+import freemarker.cache.MruCacheStorage;
+import freemarker.cache.MultiTemplateLoader;
+import freemarker.cache.StringTemplateLoader;
+import freemarker.cache.TemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.DefaultObjectWrapperBuilder;
+import freemarker.template.Template;
+import freemarker.template.Version;
+import lombok.AllArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Templates holds the parsed Freemarker templates of a Post Office. They are looked up in the
+ * in-memory templates, the custom loaders, the template directory and the classpath, in that order.
+ * <p>
+ * Render threads only ever read the cache. A template that changed at its source is parsed again by
+ * a background thread and swapped in once it is ready, so renders keep using the old version until
+ * then instead of waiting for the new one. Only a template that is not cached at all, because it
+ * was never used or was evicted, is parsed on the thread asking for it.
+ */
+
+@Slf4j
+class Templates implements AutoCloseable {
+
+    // Freemarker's own cache, only for the templates pulled in with #include or #import
+    private static final int INCLUDE_CACHE_STRONG_SIZE = 16;
+    private static final int INCLUDE_CACHE_SOFT_SIZE = 64;
+
+    private final Configuration configuration;
+    private final MruCacheStorage cache;
+    private final Set<String> names = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, Integer> sizeHints = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher;
+
+    Templates(final SMTPSettings settings) throws IOException {
+        final Version version = Configuration.getVersion();
+        configuration = new Configuration(version);
+        configuration.setObjectWrapper(new DefaultObjectWrapperBuilder(version).build());
+        configuration.loadBuiltInEncodingMap();
+        configuration.setDefaultEncoding(StandardCharsets.UTF_8.name());
+        configuration.setTagSyntax(Configuration.SQUARE_BRACKET_TAG_SYNTAX);
+        configuration.setTemplateLoader(loader(settings));
+
+        // templates pulled in with #include or #import are left to Freemarker's own cache
+        final long ttl = settings.getTemplateCacheTtl();
+        configuration.setCacheStorage(new MruCacheStorage(INCLUDE_CACHE_STRONG_SIZE, INCLUDE_CACHE_SOFT_SIZE));
+        configuration.setTemplateUpdateDelayMilliseconds(ttl > 0 ? ttl : Long.MAX_VALUE);
+        cache = new MruCacheStorage(settings.getTemplateCacheStrongSize(), settings.getTemplateCacheSoftSize());
+
+        if (ttl > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "postage-template-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refresher.scheduleWithFixedDelay(this::refresh, ttl, ttl, TimeUnit.MILLISECONDS);
+        } else {
+            refresher = null;
+        }
+    }
+
+    private static TemplateLoader loader(final SMTPSettings settings) throws IOException {
+        final List<TemplateLoader> loaders = new ArrayList<>();
+        if (!settings.getTemplates().isEmpty()) {
+            final StringTemplateLoader strings = new StringTemplateLoader();
+            settings.getTemplates().forEach(strings::putTemplate);
+            loaders.add(strings);
+        }
+        if (settings.getTemplateLoaders() != null) {
+            loaders.addAll(settings.getTemplateLoaders());
+        }
+        if (settings.getTemplateDirectory() != null) {
+            loaders.add(new FileTemplateLoader(new File(settings.getTemplateDirectory())));
+        }
+        loaders.add(new ClassTemplateLoader(settings.getClassForTemplateLoading() != null
+                ? settings.getClassForTemplateLoading() : PostOffice.class, "/"));
+
+        return loaders.size() == 1 ? loaders.get(0) : new MultiTemplateLoader(loaders.toArray(new TemplateLoader[0]));
+    }
+
+    /**
+     * @param name of the template
+     * @return the cached template, parsed first if it is not cached
+     */
+    Template get(final String name) throws IOException {
+        final Loaded loaded;
+        synchronized (cache) {
+            loaded = (Loaded) cache.get(name);
+        }
+        return loaded != null ? loaded.template : load(name);
+    }
+
+    /**
+     * @return chars the template took to render last time, with some room to spare, or 0 if it was
+     * never rendered
+     */
+    int sizeHint(final Template template) {
+        return sizeHints.getOrDefault(template.getName(), 0);
+    }
+
+    /**
+     * Learns the size of the template's output, for the next time it is rendered.
+     */
+    void rendered(final Template template, final int length) {
+        sizeHints.put(template.getName(), length + (length >> 4));
+    }
+
+    /**
+     * Parses and caches the templates in parallel on the given executor.
+     *
+     * @return future that completes once every template is cached, or fails with the first template
+     * that could not be parsed
+     */
+    CompletableFuture<Void> warmUp(final Collection<String> templateNames, final Executor executor) {
+        return CompletableFuture.allOf(templateNames.stream()
+                .map(name -> CompletableFuture.runAsync(() -> warm(name), executor))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    @SneakyThrows(IOException.class)
+    private void warm(final String name) {
+        get(name);
+    }
+
+    private Template load(final String name) throws IOException {
+        final Template template = configuration.getTemplate(name);
+        // held by the cache below, Freemarker's is kept for the included templates
+        configuration.removeTemplateFromCache(name);
+        final Loaded loaded = new Loaded(template, lastModified(template));
+        synchronized (cache) {
+            cache.put(name, loaded);
+        }
+        names.add(name);
+        return template;
+    }
+
+    /**
+     * Parses the cached templates that changed at their source again.
+     */
+    private void refresh() {
+        for (final String name : names) {
+            final Loaded loaded;
+            synchronized (cache) {
+                loaded = (Loaded) cache.get(name);
+            }
+            if (loaded == null) {
+                // evicted, whoever needs it next parses it again
+                names.remove(name);
+                continue;
+            }
+
+            try {
+                if (lastModified(loaded.template) != loaded.lastModified) {
+                    configuration.removeTemplateFromCache(name);
+                    load(name);
+                    log.info("Reloaded template {}", name);
+                }
+            } catch (final IOException | RuntimeException e) {
+                log.warn("Unable to reload template {}, still using the cached version", name, e);
+            }
+        }
+    }
+
+    /**
+     * @return when the source of the template was last modified, -1 if unknown or gone
+     */
+    private long lastModified(final Template template) throws IOException {
+        final TemplateLoader loader = configuration.getTemplateLoader();
+        final Object source = loader.findTemplateSource(template.getSourceName());
+        if (source == null) {
+            return -1L;
+        }
+
+        try {
+            return loader.getLastModified(source);
+        } finally {
+            loader.closeTemplateSource(source);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    @AllArgsConstructor
+    private static final class Loaded {
+
+        private final Template template;
+        private final long lastModified;
+
+    }
+
+}
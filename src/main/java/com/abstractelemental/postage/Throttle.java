@@ -0,0 +1,100 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.models.SMTPSettings;
+import com.abstractelemental.postage.transport.TokenBucket;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Throttle holds the global and per recipient domain rate limits of a Post Office. The limits of
+ * the relays themselves are kept by their {@link com.abstractelemental.postage.transport.SMTPRouter}.
+ */
+
+class Throttle {
+
+    private final TokenBucket global;
+    private final double domainRate;
+    private final Map<String, Double> domainRates = new HashMap<>();
+    private final int burst;
+    private final Set<Integer> throttleReplyCodes;
+    private final ConcurrentMap<String, TokenBucket> domains = new ConcurrentHashMap<>();
+
+    Throttle(final SMTPSettings settings) {
+        burst = settings.getRateLimitBurst();
+        global = settings.getRateLimit() > 0 ? new TokenBucket(settings.getRateLimit(), burst) : null;
+        domainRate = settings.getDomainRateLimit();
+        settings.getDomainRateLimits().forEach((domain, rate) -> domainRates.put(domain.toLowerCase(Locale.ROOT), rate));
+        throttleReplyCodes = settings.getThrottleReplyCodes();
+    }
+
+    /**
+     * Takes a token from every limit the parcel is subject to.
+     *
+     * @return nanoseconds to wait before the parcel may be sent
+     */
+    long reserve(final Parcel parcel) {
+        long wait = global != null ? global.reserve() : 0L;
+        if (hasDomainLimits()) {
+            for (final String domain : parcel.getDomains()) {
+                final TokenBucket bucket = domain(domain);
+                if (bucket != null) {
+                    wait = Math.max(wait, bucket.reserve());
+                }
+            }
+        }
+        return wait;
+    }
+
+    void delivered(final Parcel parcel) {
+        if (global != null) {
+            global.delivered();
+        }
+        if (hasDomainLimits()) {
+            for (final String domain : parcel.getDomains()) {
+                final TokenBucket bucket = domain(domain);
+                if (bucket != null) {
+                    bucket.delivered();
+                }
+            }
+        }
+    }
+
+    /**
+     * Slows down every limit the parcel went through when the relay answered with a throttling reply.
+     */
+    void failed(final Parcel parcel, final int replyCode) {
+        if (!throttleReplyCodes.contains(replyCode)) {
+            return;
+        }
+
+        if (global != null) {
+            global.throttled();
+        }
+        if (hasDomainLimits()) {
+            for (final String domain : parcel.getDomains()) {
+                final TokenBucket bucket = domain(domain);
+                if (bucket != null) {
+                    bucket.throttled();
+                }
+            }
+        }
+    }
+
+    private boolean hasDomainLimits() {
+        return domainRate > 0 || !domainRates.isEmpty();
+    }
+
+    /**
+     * @return the bucket of the domain, or null when mail to it is not limited
+     */
+    private TokenBucket domain(final String domain) {
+        final double rate = domainRates.getOrDefault(domain, domainRate);
+        return rate > 0 ? domains.computeIfAbsent(domain, d -> new TokenBucket(rate, burst)) : null;
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.abstractelemental.postage;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * VirtualThreads creates the delivery threads when
+ * {@link com.abstractelemental.postage.models.SMTPSettings#isVirtualThreads()} is set. This is the
+ * Java 8 version, which has none to offer, so the Post Office falls back to platform threads.
+ * Postage is a multi-release jar: on Java 21 and later the version in src/main/java21 is loaded
+ * instead.
+ */
+
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return false;
+    }
+
+    static ThreadFactory factory(final String name) {
+        throw new UnsupportedOperationException("Virtual threads require Java 21");
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.abstractelemental.postage.metrics;
+
+import com.abstractelemental.postage.PostOffice;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * MicrometerPostageMetrics publishes Postage metrics to a Micrometer {@link MeterRegistry}:
+ * <ul>
+ * <li>{@code postage.send.phase}, a timer per {@link SendPhase} (tag {@code phase})</li>
+ * <li>{@code postage.send.outcome}, a counter per {@link SendOutcome} and SMTP reply code (tags
+ * {@code outcome} and {@code code})</li>
+ * <li>{@code postage.queue.depth} and {@code postage.threads.active} per stage (tag {@code stage}),
+ * {@code postage.in.delivery}, {@code postage.connections} (tag {@code state}),
+ * {@code postage.relays.available} and {@code postage.concurrency.limit} as gauges</li>
+ * </ul>
+ * Micrometer is an optional dependency of Postage, add it to your own build to use this class.
+ */
+
+public class MicrometerPostageMetrics implements PostageMetrics {
+
+    private static final int REPLY_CODES = 600;
+
+    private final MeterRegistry registry;
+    private final Timer[] timers = new Timer[SendPhase.values().length];
+
+    // one lazily registered counter per outcome and reply code, indexed by reply code + 1
+    private final AtomicReferenceArray<Counter> counters =
+            new AtomicReferenceArray<>(SendOutcome.values().length * (REPLY_CODES + 1));
+
+    public MicrometerPostageMetrics(final MeterRegistry registry) {
+        this.registry = registry;
+        for (final SendPhase phase : SendPhase.values()) {
+            timers[phase.ordinal()] = Timer.builder("postage.send.phase")
+                    .tag("phase", phase.name().toLowerCase(Locale.ROOT))
+                    .register(registry);
+        }
+    }
+
+    @Override
+    public void register(final PostOffice postOffice) {
+        gauge("postage.queue.depth", "stage", "render", postOffice, PostOffice::getRenderQueueDepth);
+        gauge("postage.queue.depth", "stage", "delivery", postOffice, PostOffice::getDeliveryQueueDepth);
+        gauge("postage.threads.active", "stage", "render", postOffice, PostOffice::getActiveRenderThreads);
+        gauge("postage.threads.active", "stage", "delivery", postOffice, PostOffice::getActiveDeliveryThreads);
+        gauge("postage.connections", "state", "active", postOffice, PostOffice::getActiveConnections);
+        gauge("postage.connections", "state", "idle", postOffice, PostOffice::getIdleConnections);
+        Gauge.builder("postage.relays.available", postOffice, PostOffice::getAvailableRelays)
+                .description("SMTP relays not taken out of rotation for failing")
+                .register(registry);
+        Gauge.builder("postage.in.delivery", postOffice, PostOffice::getInDelivery)
+                .description("Emails rendered and not yet settled, including those waiting for a retry")
+                .register(registry);
+        Gauge.builder("postage.concurrency.limit", postOffice, PostOffice::getConcurrencyLimit)
+                .description("Most emails delivered at once")
+                .register(registry);
+    }
+
+    @Override
+    public void timed(final SendPhase phase, final long nanos) {
+        timers[phase.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void counted(final SendOutcome outcome, final int replyCode) {
+        final int code = replyCode >= 0 && replyCode < REPLY_CODES ? replyCode : -1;
+        final int index = outcome.ordinal() * (REPLY_CODES + 1) + code + 1;
+
+        Counter counter = counters.get(index);
+        if (counter == null) {
+            counter = Counter.builder("postage.send.outcome")
+                    .tag("outcome", outcome.name().toLowerCase(Locale.ROOT))
+                    .tag("code", code >= 0 ? Integer.toString(code) : "none")
+                    .register(registry);
+            counters.set(index, counter);
+        }
+        counter.increment();
+    }
+
+    private void gauge(final String name, final String tag, final String value, final PostOffice postOffice,
+                       final ToDoubleFunction<PostOffice> f) {
+        Gauge.builder(name, postOffice, f).tag(tag, value).register(registry);
+    }
+
+}
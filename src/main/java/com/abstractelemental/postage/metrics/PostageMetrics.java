@@ -0,0 +1,45 @@
+package com.abstractelemental.postage.metrics;
+
+import com.abstractelemental.postage.PostOffice;
+
+/**
+ * PostageMetrics is told how long each step of a send takes and how every send ends. Set it on
+ * {@link com.abstractelemental.postage.models.SMTPSettings#setMetrics(PostageMetrics)}; every method
+ * does nothing by default, so an implementation only overrides what it is interested in.
+ * <p>
+ * Methods are called on the Post Office's own threads, in the middle of a send, and must be quick
+ * and must not throw. Their arguments are primitives and enums, so reporting to {@link #NONE} costs
+ * no allocation.
+ */
+
+public interface PostageMetrics {
+
+    /**
+     * Metrics that go nowhere, the default.
+     */
+    PostageMetrics NONE = new PostageMetrics() {
+    };
+
+    /**
+     * Called once by the Post Office being built, so gauges can poll its queue depths, busy threads
+     * and pooled connections.
+     */
+    default void register(final PostOffice postOffice) {
+    }
+
+    /**
+     * @param phase of the send that was timed
+     * @param nanos it took, successful or not
+     */
+    default void timed(final SendPhase phase, final long nanos) {
+    }
+
+    /**
+     * @param outcome   of a send or of one delivery attempt
+     * @param replyCode SMTP reply code behind the outcome, or
+     *                  {@link com.abstractelemental.postage.transport.SMTPReply#UNKNOWN} when there is none
+     */
+    default void counted(final SendOutcome outcome, final int replyCode) {
+    }
+
+}
@@ -0,0 +1,42 @@
+package com.abstractelemental.postage.metrics;
+
+/**
+ * How a send, or one attempt at delivering it, ended. Counted by
+ * {@link PostageMetrics#counted(SendOutcome, int)}.
+ */
+
+public enum SendOutcome {
+
+    /**
+     * The relay accepted the email. Counted without a reply code, which the transport does not report.
+     */
+    DELIVERED,
+
+    /**
+     * A delivery attempt failed and another one is scheduled.
+     */
+    RETRIED,
+
+    /**
+     * The email could not be prepared or delivered, and will not be retried.
+     */
+    FAILED,
+
+    /**
+     * The email was never queued, because the queue was full or the Post Office closed.
+     */
+    REJECTED,
+
+    /**
+     * The email had the idempotency key of one sent within the deduplication window, and was
+     * answered with that one's receipt instead of being sent.
+     */
+    DUPLICATE,
+
+    /**
+     * The Post Office closed before the email was delivered. A journaled email is left in the outbox
+     * to be replayed.
+     */
+    ABANDONED
+
+}
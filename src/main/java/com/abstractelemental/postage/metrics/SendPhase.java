@@ -0,0 +1,30 @@
+package com.abstractelemental.postage.metrics;
+
+/**
+ * The steps of a send timed by {@link PostageMetrics#timed(SendPhase, long)}.
+ */
+
+public enum SendPhase {
+
+    /**
+     * Rendering the template and resolving addresses and attachments, on the render stage.
+     */
+    RENDER,
+
+    /**
+     * Building the MIME message on the delivery stage.
+     */
+    MIME_BUILD,
+
+    /**
+     * Opening (and authenticating) a new connection to the relay. Sends over a pooled connection
+     * skip this phase.
+     */
+    CONNECT,
+
+    /**
+     * The SMTP transaction, from MAIL FROM until the relay has accepted the message content.
+     */
+    DATA
+
+}
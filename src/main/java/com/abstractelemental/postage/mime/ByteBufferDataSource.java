@@ -0,0 +1,57 @@
+package com.abstractelemental.postage.mime;
+
+import javax.activation.DataSource;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ByteBufferDataSource serves attachment content straight out of a buffer, heap, direct or
+ * memory-mapped alike. The bytes between the buffer's position and limit at construction are used,
+ * and every reader gets its own view of them, so one buffer can back any number of messages.
+ */
+
+public class ByteBufferDataSource implements DataSource {
+
+    private final ByteBuffer buffer;
+    private final String name;
+    private final String contentType;
+
+    public ByteBufferDataSource(final ByteBuffer buffer, final String name, final String contentType) {
+        this.buffer = buffer.asReadOnlyBuffer();
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    public int size() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Hash code of the content, far cheaper than a digest of it.
+     */
+    int contentHashCode() {
+        return buffer.hashCode();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        throw new UnsupportedOperationException("ByteBufferDataSource is read-only");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+}
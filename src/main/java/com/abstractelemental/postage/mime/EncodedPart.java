@@ -0,0 +1,43 @@
+package com.abstractelemental.postage.mime;
+
+import lombok.Getter;
+
+import javax.activation.DataSource;
+import java.nio.ByteBuffer;
+
+/**
+ * EncodedPart is the transfer-encoded content of one MIME body part, shared read-only by every
+ * message that carries the same content. The bytes live either on the heap or in a direct buffer.
+ */
+
+@Getter
+class EncodedPart {
+
+    private final String encoding;
+    private final ByteBuffer bytes;
+
+    EncodedPart(final String encoding, final byte[] encoded, final int length, final boolean offHeap) {
+        this.encoding = encoding;
+        if (offHeap) {
+            final ByteBuffer direct = ByteBuffer.allocateDirect(length);
+            direct.put(encoded, 0, length).flip();
+            this.bytes = direct.asReadOnlyBuffer();
+        } else {
+            final byte[] copy = new byte[length];
+            System.arraycopy(encoded, 0, copy, 0, length);
+            this.bytes = ByteBuffer.wrap(copy).asReadOnlyBuffer();
+        }
+    }
+
+    int size() {
+        return bytes.capacity();
+    }
+
+    /**
+     * A DataSource over the encoded bytes, with the content type of the part it stands in for.
+     */
+    DataSource asDataSource(final String contentType, final String name) {
+        return new ByteBufferDataSource(bytes, name, contentType);
+    }
+
+}
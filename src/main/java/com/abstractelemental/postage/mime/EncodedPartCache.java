@@ -0,0 +1,342 @@
+package com.abstractelemental.postage.mime;
+
+import lombok.SneakyThrows;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import javax.mail.BodyPart;
+import javax.mail.Header;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.PreencodedMimeBodyPart;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EncodedPartCache keeps the transfer-encoded (base64, quoted-printable...) content of MIME body
+ * parts, addressed by a SHA-256 digest of their content type and raw content. Messages carrying the
+ * same logo, the same PDF or the same rendered HTML then share one encoded copy, written by
+ * reference, instead of each message reading and encoding it again.
+ * <p>
+ * The cache is bounded by the size of the encoded content and evicts the least recently used parts
+ * first. Attachments are cached the first time they are seen. Text parts are only cached once the
+ * same content is seen a second time, so a mail merge of personalised HTML does not flush the cache
+ * with parts that will never be sent again. Until then a text part is only fingerprinted by its
+ * length and hash code, so personalised bodies are never digested either.
+ */
+
+public class EncodedPartCache {
+
+    private static final int SEEN_ONCE_ENTRIES = 10_000;
+    private static final int FILE_ENTRIES = 1_000;
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    private final long capacity;
+    private final boolean offHeap;
+    private final Map<ByteBuffer, EncodedPart> parts = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Boolean> seenOnce = bounded(SEEN_ONCE_ENTRIES);
+    private final Map<String, ByteBuffer> fileDigests = bounded(FILE_ENTRIES);
+    private final Map<ByteBufferDataSource, ByteBuffer> bufferDigests = new WeakHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private long size;
+
+    /**
+     * @param capacity maximum number of bytes of encoded content to keep
+     * @param offHeap  whether to keep the encoded content in direct buffers, outside the Java heap
+     */
+    public EncodedPartCache(final long capacity, final boolean offHeap) {
+        this.capacity = capacity;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Swaps every cacheable body part of the message for one that writes the shared encoded content.
+     * The message must have been built but not yet sent.
+     */
+    public void share(final MimeMessage message) throws MessagingException, IOException {
+        final DataHandler dh = message.getDataHandler();
+        final Object content = dh.getName() == null
+                && dh.getContentType().regionMatches(true, 0, "multipart/", 0, 10) ? dh.getContent() : null;
+        if (content instanceof MimeMultipart) {
+            share((MimeMultipart) content);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Bytes of encoded content currently held.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return parts.size();
+    }
+
+    private void share(final MimeMultipart multipart) throws MessagingException, IOException {
+        for (int i = 0; i < multipart.getCount(); i++) {
+            final BodyPart part = multipart.getBodyPart(i);
+            final DataHandler dh = part.getDataHandler();
+            if (!(part instanceof MimeBodyPart) || part instanceof PreencodedMimeBodyPart || dh == null) {
+                continue;
+            }
+
+            final EncodedPart encoded;
+            if (isShareable(dh.getDataSource())) {
+                encoded = lookup(dh, null);
+            } else {
+                // a DataHandler created from an object (rather than a DataSource) has no name
+                final Object content = dh.getName() == null ? dh.getContent() : null;
+                if (content instanceof MimeMultipart) {
+                    share((MimeMultipart) content);
+                }
+                encoded = content instanceof String ? lookup(dh, (String) content) : null;
+            }
+
+            if (encoded != null) {
+                multipart.removeBodyPart(i);
+                multipart.addBodyPart(shared((MimeBodyPart) part, dh, encoded), i);
+            }
+        }
+    }
+
+    /**
+     * Content that can be read again cheaply. Streamed attachments are left alone, hashing them would
+     * mean reading them twice.
+     */
+    private static boolean isShareable(final DataSource ds) {
+        return ds instanceof FileDataSource || ds instanceof PathDataSource || ds instanceof ByteBufferDataSource;
+    }
+
+    /**
+     * @param text the content of a part built from a string, or null
+     * @return the shared encoded content, or null when the part should be left alone
+     */
+    private EncodedPart lookup(final DataHandler dh, final String text) throws MessagingException, IOException {
+        if (minimumEncodedSize(dh) > capacity) {
+            // would never fit, don't read it into memory only to throw it away
+            return null;
+        }
+        if (dh.getContentType().regionMatches(true, 0, "text/", 0, 5)) {
+            final String fingerprint = fingerprint(dh, text);
+            synchronized (this) {
+                if (seenOnce.put(fingerprint, Boolean.TRUE) == null) {
+                    return null;
+                }
+            }
+        }
+
+        final ByteBuffer key = key(dh);
+        synchronized (this) {
+            final EncodedPart cached = parts.get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+
+        misses.incrementAndGet();
+        final EncodedPart encoded = encode(dh);
+        if (encoded.size() > capacity) {
+            return null;
+        }
+
+        synchronized (this) {
+            final EncodedPart raced = parts.putIfAbsent(key, encoded);
+            if (raced != null) {
+                return raced;
+            }
+
+            size += encoded.size();
+            evict();
+        }
+        return encoded;
+    }
+
+    private void evict() {
+        final Iterator<EncodedPart> eldest = parts.values().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * The fewest bytes the part can take once encoded, judging by the size of its content: base64
+     * unless it is text. 0 when the size is not known up front.
+     */
+    private static long minimumEncodedSize(final DataHandler dh) {
+        final DataSource ds = dh.getDataSource();
+        final long raw;
+        if (ds instanceof ByteBufferDataSource) {
+            raw = ((ByteBufferDataSource) ds).size();
+        } else if (ds instanceof FileDataSource) {
+            raw = ((FileDataSource) ds).getFile().length();
+        } else if (ds instanceof PathDataSource) {
+            raw = ((PathDataSource) ds).getPath().toFile().length();
+        } else {
+            return 0L;
+        }
+        return dh.getContentType().regionMatches(true, 0, "text/", 0, 5) ? raw : (raw + 2) / 3 * 4;
+    }
+
+    /**
+     * Stands in for the digest of a text part until it is seen again. Two different parts may share a
+     * fingerprint, which only costs a digest that turns out not to be needed.
+     */
+    private static String fingerprint(final DataHandler dh, final String text) {
+        final DataSource ds = dh.getDataSource();
+        final String type = dh.getContentType() + '\0';
+        if (text != null) {
+            return type + text.length() + '\0' + text.hashCode();
+        } else if (ds instanceof ByteBufferDataSource) {
+            final ByteBufferDataSource buffer = (ByteBufferDataSource) ds;
+            return type + buffer.size() + '\0' + buffer.contentHashCode();
+        }
+        return type + identity(ds);
+    }
+
+    /**
+     * A file is only hashed again when its size or modification time changes, a buffer never.
+     */
+    private ByteBuffer key(final DataHandler dh) throws IOException {
+        final DataSource ds = dh.getDataSource();
+        if (ds instanceof ByteBufferDataSource) {
+            synchronized (this) {
+                final ByteBuffer digest = bufferDigests.get(ds);
+                if (digest != null) {
+                    return digest;
+                }
+            }
+
+            final ByteBuffer digest = digest(dh);
+            synchronized (this) {
+                bufferDigests.put((ByteBufferDataSource) ds, digest);
+            }
+            return digest;
+        } else if (!(ds instanceof FileDataSource) && !(ds instanceof PathDataSource)) {
+            return digest(dh);
+        }
+
+        final String identity = identity(ds);
+        synchronized (this) {
+            final ByteBuffer digest = fileDigests.get(identity);
+            if (digest != null) {
+                return digest;
+            }
+        }
+
+        final ByteBuffer digest = digest(dh);
+        synchronized (this) {
+            fileDigests.put(identity, digest);
+        }
+        return digest;
+    }
+
+    private static String identity(final DataSource ds) {
+        final File file = ds instanceof PathDataSource ? ((PathDataSource) ds).getPath().toFile()
+                : ((FileDataSource) ds).getFile();
+        return file.getAbsolutePath() + '\0' + file.length() + '\0' + file.lastModified();
+    }
+
+    private static ByteBuffer digest(final DataHandler dh) throws IOException {
+        final MessageDigest md = sha256();
+        md.update(dh.getContentType().getBytes(StandardCharsets.UTF_8));
+        try (DigestOutputStream out = new DigestOutputStream(DISCARD, md)) {
+            dh.writeTo(out);
+        }
+        return ByteBuffer.wrap(md.digest());
+    }
+
+    private EncodedPart encode(final DataHandler dh) throws MessagingException, IOException {
+        final String encoding = MimeUtility.getEncoding(dh);
+        final ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream();
+        try (OutputStream out = MimeUtility.encode(bytes, encoding)) {
+            dh.writeTo(out);
+        }
+        return new EncodedPart(encoding, bytes.array(), bytes.size(), offHeap);
+    }
+
+    private static MimeBodyPart shared(final MimeBodyPart original, final DataHandler dh, final EncodedPart encoded)
+            throws MessagingException {
+        final PreencodedMimeBodyPart part = new PreencodedMimeBodyPart(encoded.getEncoding());
+        part.setDataHandler(new DataHandler(encoded.asDataSource(dh.getContentType(), dh.getName())));
+
+        @SuppressWarnings("unchecked")
+        final Enumeration<Header> headers = original.getAllHeaders();
+        while (headers.hasMoreElements()) {
+            final Header header = headers.nextElement();
+            if (!"Content-Type".equalsIgnoreCase(header.getName())
+                    && !"Content-Transfer-Encoding".equalsIgnoreCase(header.getName())) {
+                part.addHeader(header.getName(), header.getValue());
+            }
+        }
+
+        // stops updateHeaders from reading the content again to pick an encoding
+        part.setHeader("Content-Transfer-Encoding", encoded.getEncoding());
+        return part;
+    }
+
+    @SneakyThrows(NoSuchAlgorithmException.class)
+    private static MessageDigest sha256() {
+        return MessageDigest.getInstance("SHA-256");
+    }
+
+    private static <K, V> Map<K, V> bounded(final int entries) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+                return size() > entries;
+            }
+        };
+    }
+
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        private ExposedByteArrayOutputStream() {
+            super(8192);
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.abstractelemental.postage.mime;
+
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.Supplier;
+
+/**
+ * InputStreamDataSource streams attachment content from wherever the supplier gets it (a database
+ * blob, an object store...). The content may be read more than once per message, e.g. to choose its
+ * transfer encoding and again when a delivery is retried, so the supplier must return a fresh
+ * stream from the start every time.
+ */
+
+public class InputStreamDataSource implements DataSource {
+
+    private final Supplier<? extends InputStream> supplier;
+    private final String name;
+    private final String contentType;
+
+    public InputStreamDataSource(final Supplier<? extends InputStream> supplier, final String name,
+                                 final String contentType) {
+        this.supplier = supplier;
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        final InputStream in = supplier.get();
+        if (in == null) {
+            throw new IOException("No content for attachment " + name);
+        }
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        throw new UnsupportedOperationException("InputStreamDataSource is read-only");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.abstractelemental.postage.mime;
+
+import lombok.Getter;
+
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PathDataSource reads a file through a {@link FileChannel} as the message is written, so even a
+ * very large attachment is never held in memory as a whole.
+ */
+
+public class PathDataSource implements DataSource {
+
+    @Getter
+    private final Path path;
+    private final String contentType;
+
+    public PathDataSource(final Path path, final String contentType) {
+        this.path = path;
+        this.contentType = contentType;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        throw new UnsupportedOperationException("PathDataSource is read-only");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return path.getFileName().toString();
+    }
+
+}
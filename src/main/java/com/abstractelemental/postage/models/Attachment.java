@@ -1,64 +1,152 @@
 package com.abstractelemental.postage.models;
 
+import com.abstractelemental.postage.mime.ByteBufferDataSource;
+import com.abstractelemental.postage.mime.InputStreamDataSource;
+import com.abstractelemental.postage.mime.PathDataSource;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.SneakyThrows;
 import lombok.ToString;
 import org.apache.commons.mail.EmailAttachment;
 
+import javax.activation.DataSource;
+import javax.activation.FileTypeMap;
+import javax.activation.URLDataSource;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 /**
  * Attachment defines an attachment for an email. Name and one of the following
- * fields are required: filesystem path or url.
+ * fields are required: filesystem path, url, bytes, buffer or stream.
+ * <p>
+ * Attachments are streamed into the message as it is written, none of them go through a temporary
+ * file. When the email is journaled in the outbox a buffer is journaled as a copy of its bytes. A
+ * stream is only journaled if its supplier is serializable.
  */
 
 @Getter
-public class Attachment {
+public class Attachment implements Serializable {
+
+    private static final long serialVersionUID = -1432574934116283675L;
 
     private final String name;
     private final String description;
     private final String path;
     private final String url;
     private final byte[] bytes;
+    private final transient ByteBuffer buffer;
+    private final Supplier<? extends InputStream> stream;
+
+    /**
+     * In-memory content is served by one DataSource for every email the attachment is on.
+     */
+    @Getter(AccessLevel.NONE)
+    private transient volatile DataSource dataSource;
 
     /**
      * Build an attachement with something on the filesystem.
      */
     public static Attachment fromPath(final String name, final String description, String path) {
-        return new Attachment(name, description, path, null, null);
+        return new Attachment(name, description, path, null, null, null, null);
     }
 
     /**
      * Build an attachment accessed via a URL.
      */
     public static Attachment fromURL(final String name, final String description, String url) {
-        return new Attachment(name, description, null, url, null);
+        return new Attachment(name, description, null, url, null, null, null);
     }
 
     /**
      * Build an attachment with a byte array.
      */
     public static Attachment fromBytes(final String name, final String description, byte[] bytes) {
-        return new Attachment(name, description, null, null, bytes);
+        return new Attachment(name, description, null, null, bytes, null, null);
+    }
+
+    /**
+     * Build an attachment with the bytes between the buffer's position and limit. Direct and
+     * memory-mapped buffers are read in place, the buffer must not be modified until the email has
+     * been sent.
+     */
+    public static Attachment fromByteBuffer(final String name, final String description, ByteBuffer buffer) {
+        return new Attachment(name, description, null, null, null, buffer.asReadOnlyBuffer(), null);
+    }
+
+    /**
+     * Build an attachment read from a stream as the email is sent. The supplier must return a new
+     * stream, from the start of the content, every time it is called.
+     */
+    public static Attachment fromStream(final String name, final String description,
+                                        Supplier<? extends InputStream> stream) {
+        return new Attachment(name, description, null, null, null, null, stream);
     }
 
-    private Attachment(final String name, final String description, final String path, final String url, final byte[] bytes) {
+    private Attachment(final String name, final String description, final String path, final String url,
+                       final byte[] bytes, final ByteBuffer buffer, final Supplier<? extends InputStream> stream) {
         this.name = name;
         this.description = description;
         this.path = path;
         this.url = url;
         this.bytes = bytes;
+        this.buffer = buffer;
+        this.stream = stream;
     }
 
     /**
-     * Performs the necessary steps to translate a Postage {@link Attachment}
-     * into a Commons {@link EmailAttachment}
+     * Performs the necessary steps to translate a Postage {@link Attachment} into the DataSource the
+     * MIME message reads it from. Files are read through a FileChannel.
+     *
+     * @throws NoSuchFileException if the attachment is a path that cannot be read
      */
     @SneakyThrows({MalformedURLException.class, IOException.class})
+    public static Optional<DataSource> toDataSource(final Attachment a) {
+        if (a.getName() == null) {
+            return Optional.empty();
+        }
+
+        final String contentType = FileTypeMap.getDefaultFileTypeMap().getContentType(a.getName());
+
+        if (a.getPath() != null) {
+            final Path path = Paths.get(a.getPath());
+            if (!Files.isReadable(path)) {
+                throw new NoSuchFileException(a.getPath());
+            }
+            return Optional.of(new PathDataSource(path,
+                    FileTypeMap.getDefaultFileTypeMap().getContentType(path.getFileName().toString())));
+        } else if (a.getUrl() != null) {
+            return Optional.of(new URLDataSource(new URL(a.getUrl())));
+        } else if (a.getBytes() != null || a.getBuffer() != null) {
+            if (a.dataSource == null) {
+                a.dataSource = new ByteBufferDataSource(a.getBytes() != null ? ByteBuffer.wrap(a.getBytes())
+                        : a.getBuffer(), a.getName(), contentType);
+            }
+            return Optional.of(a.dataSource);
+        } else if (a.getStream() != null) {
+            return Optional.of(new InputStreamDataSource(a.getStream(), a.getName(), contentType));
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Performs the necessary steps to translate a Postage {@link Attachment}
+     * into a Commons {@link EmailAttachment}. Only path and url attachments can be translated.
+     *
+     * @deprecated use {@link #toDataSource(Attachment)}, which supports every kind of attachment
+     */
+    @Deprecated
+    @SneakyThrows(MalformedURLException.class)
     public static Optional<EmailAttachment> toEmailAttachment(final Attachment a) {
 
         if (a.getName() == null || (a.getPath() == null && a.getUrl() == null)) {
@@ -72,14 +160,24 @@ public class Attachment {
 
         if (a.getPath() != null) {
             attachment.setPath(a.getPath());
-        } else if (a.getUrl() != null) {
-            attachment.setURL(new URL(a.getUrl()));
         } else {
-            attachment.setPath(Files.createTempFile(a.getName(), "")
-                    .toFile().getPath());
+            attachment.setURL(new URL(a.getUrl()));
         }
 
         return Optional.of(attachment);
     }
 
+    /**
+     * A buffer is not serializable, journal a copy of its bytes instead.
+     */
+    private Object writeReplace() {
+        if (buffer == null) {
+            return this;
+        }
+
+        final byte[] copy = new byte[buffer.remaining()];
+        buffer.duplicate().get(copy);
+        return new Attachment(name, description, null, null, copy, null, null);
+    }
+
 }
@@ -0,0 +1,26 @@
+package com.abstractelemental.postage.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * BulkReceipt is the outcome of a whole mail merge. The throwable is set when the merge stopped
+ * early, e.g. the template could not be loaded or the recipient stream failed; the counts still
+ * cover every email that was submitted before that.
+ */
+
+@AllArgsConstructor
+@Getter
+public class BulkReceipt {
+
+    private final long submitted;
+    private final long delivered;
+    private final long failed;
+    private final List<Contact> failedRecipients;
+    private final Duration elapsed;
+    private final Throwable throwable;
+
+}
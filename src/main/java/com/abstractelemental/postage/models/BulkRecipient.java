@@ -0,0 +1,26 @@
+package com.abstractelemental.postage.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * BulkRecipient is one row of a mail merge: who to send to and the freemarkerView to render the
+ * shared template with. The metadata is added to the envelope's metadata for this recipient only.
+ */
+
+@AllArgsConstructor
+@Getter
+public class BulkRecipient {
+
+    private final Contact contact;
+    private final Object freemarkerView;
+    private final Map<String, Object> metadata;
+
+    public BulkRecipient(final Contact contact, final Object freemarkerView) {
+        this(contact, freemarkerView, Collections.emptyMap());
+    }
+
+}
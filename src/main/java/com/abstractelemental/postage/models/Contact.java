@@ -1,23 +1,29 @@
 package com.abstractelemental.postage.models;
 
-import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.SneakyThrows;
 
+import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
+import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
-
-import static org.joor.Reflect.on;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
 
 /**
- * Contact represents a recipient (to, cc, or bcc) or a sender.
+ * Contact represents a recipient (to, cc, or bcc) or a sender. Contacts are immutable, so the
+ * InternetAddress is built and validated once per contact and then reused for every email it is on.
  */
 
 @Getter
-public class Contact implements Comparable<Contact> {
+public class Contact implements Comparable<Contact>, Serializable {
+
+    private static final long serialVersionUID = 3257201893465125418L;
+
+    private final String email;
+    private final String displayName;
 
-    private String email;
-    private String displayName;
+    private transient volatile InternetAddress internetAddress;
 
     public Contact(final String email) {
         this(email, null);
@@ -28,10 +34,20 @@ public class Contact implements Comparable<Contact> {
         this.displayName = displayName;
     }
 
+    /**
+     * The address of the contact, with the display name encoded as UTF-8. The returned address is
+     * shared by every email the contact is on and must not be modified.
+     *
+     * @throws AddressException if the email address is not a valid RFC 822 address
+     */
+    @SneakyThrows({AddressException.class, UnsupportedEncodingException.class})
     public static InternetAddress toInternetAddress(final Contact c) {
-        InternetAddress address = new InternetAddress();
-        address.setAddress(c.getEmail());
-        on(address).set("personal", c.getDisplayName());
+        InternetAddress address = c.internetAddress;
+        if (address == null) {
+            address = new InternetAddress(c.getEmail(), c.getDisplayName(), StandardCharsets.UTF_8.name());
+            address.validate();
+            c.internetAddress = address;
+        }
         return address;
     }
 
@@ -48,7 +64,7 @@ public class Contact implements Comparable<Contact> {
 
     @Override
     public int hashCode() {
-        return this.getEmail().hashCode();
+        return this.getEmail().toLowerCase(Locale.ROOT).hashCode();
     }
 
 }
@@ -0,0 +1,36 @@
+package com.abstractelemental.postage.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * DrainReport is the outcome of closing a Post Office within a deadline. When it drained, every email
+ * sent before it closed has its receipt. When it did not, the emails still queued or waiting for a
+ * retry were abandoned with a failure receipt and are listed as undelivered; journaled ones stay in
+ * the outbox and are replayed by the next Post Office. Emails that were being rendered or sent at the
+ * deadline are only counted, they settle on their own.
+ */
+
+@AllArgsConstructor
+@Getter
+public class DrainReport {
+
+    private final boolean drained;
+
+    /**
+     * The emails abandoned at the deadline, only their envelope under
+     * {@link SMTPSettings#isCompactReceipts()} once rendered.
+     */
+    private final List<Email> undelivered;
+
+    /**
+     * Emails still being rendered or sent at the deadline.
+     */
+    private final int inFlight;
+
+    private final Duration elapsed;
+
+}
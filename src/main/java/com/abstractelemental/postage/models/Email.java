@@ -6,6 +6,8 @@ import lombok.Singular;
 import lombok.ToString;
 
 import javax.validation.constraints.NotNull;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -15,12 +17,17 @@ import java.util.Set;
  * Email defines a unit that the Post Office can send. Both freemarkerTemplateFilename and
  * freemarkerView must be defined in order to send an HTML email. If either or both are null, only a
  * plain text email will be sent.
+ * <p>
+ * When the Post Office has an outbox, emails are journaled using Java serialization, so the
+ * freemarkerView and metadata values should be serializable as well.
  */
 
-@Builder
+@Builder(toBuilder = true)
 @Getter
 @ToString
-public class Email {
+public class Email implements Serializable {
+
+    private static final long serialVersionUID = -6195328446423453254L;
 
     @Singular
     private final Set<Contact> recipients;
@@ -53,6 +60,24 @@ public class Email {
     @Singular
     private final List<Attachment> attachments;
 
+    /**
+     * Identifies the email across repeated sends, e.g. a caller retrying after a timeout. An email
+     * sent with the key of one sent within {@link SMTPSettings#getDeduplicationWindow()} is not
+     * sent again, it gets the receipt of the first one.
+     * <p>
+     * The key cannot tell whether a relay that never answered the message took it. Such an attempt
+     * fails with an uncertain {@link com.abstractelemental.postage.transport.TransactionFailedException}
+     * and is not retried, and repeats within the window get that failed receipt rather than sending
+     * the email again. Whether to send it once more, under a new key, is then up to the caller. This
+     * is not remembered across restarts, only delivered emails are kept on file.
+     */
+    private final String idempotencyKey;
+
+    /**
+     * Lane the email waits in, {@link Priority#NORMAL} when not set.
+     */
+    private final Priority priority;
+
     public Optional<String> getFreemarkerTemplateFilename() {
         return Optional.ofNullable(freemarkerTemplateFilename);
     }
@@ -61,4 +86,47 @@ public class Email {
         return Optional.ofNullable(freemarkerView);
     }
 
+    /**
+     * Recipients, copies and blind copies, in that order.
+     */
+    public List<Contact> getAllRecipients() {
+        final List<Contact> everyone = new ArrayList<>(recipients.size() + carbonCopies.size()
+                + blindCarbonCopies.size());
+        everyone.addAll(recipients);
+        everyone.addAll(carbonCopies);
+        everyone.addAll(blindCarbonCopies);
+        return everyone;
+    }
+
+    /**
+     * Number of recipients, copies and blind copies included.
+     */
+    public int getRecipientCount() {
+        return recipients.size() + carbonCopies.size() + blindCarbonCopies.size();
+    }
+
+    /**
+     * The same email without anything it is rendered from: no bodies, template, view or
+     * attachments. Addresses, subject, metadata and priority are kept.
+     */
+    public Email toEnvelope() {
+        return toBuilder()
+                .plainBody(null)
+                .freemarkerTemplateFilename(null)
+                .freemarkerView(null)
+                .clearAttachments()
+                .build();
+    }
+
+    public Priority getPriority() {
+        return priority != null ? priority : Priority.NORMAL;
+    }
+
+    /**
+     * Whether a priority was set on the email, rather than defaulted.
+     */
+    public boolean hasPriority() {
+        return priority != null;
+    }
+
 }
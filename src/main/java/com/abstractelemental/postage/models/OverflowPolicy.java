@@ -0,0 +1,25 @@
+package com.abstractelemental.postage.models;
+
+/**
+ * OverflowPolicy decides what the Post Office does with an email when its lane of the send queue
+ * is full, see {@link SMTPSettings#getLaneCapacity()}.
+ */
+
+public enum OverflowPolicy {
+
+    /**
+     * The calling thread waits until there is room in the queue.
+     */
+    BLOCK,
+
+    /**
+     * The email is not queued, its receipt fails immediately.
+     */
+    REJECT,
+
+    /**
+     * The oldest queued email of the same priority is removed to make room, its receipt fails.
+     */
+    DROP_OLDEST
+
+}
@@ -1,16 +1,90 @@
 package com.abstractelemental.postage.models;
 
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
+import lombok.Builder;
 import lombok.Getter;
 
-@AllArgsConstructor
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PostageReceipt is the outcome of sending one email. A compact receipt, see
+ * {@link SMTPSettings#isCompactReceipts()}, does not hold on to the email, only to what is needed to
+ * account for it.
+ */
+
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@Builder
 @Getter
 public class PostageReceipt {
 
     private final Boolean success;
+
+    /**
+     * The email that was sent, null for a compact receipt.
+     */
     private final Email email;
 
     private final String messageId;
     private final Throwable throwable;
 
+    /**
+     * Recipients, copies included, the email was not delivered to. When an envelope too large for
+     * one SMTP transaction was sent in chunks, only the recipients of the chunks that failed.
+     */
+    private final List<Contact> failedRecipients;
+
+    /**
+     * The metadata of the email.
+     */
+    private final Map<String, Object> metadata;
+
+    /**
+     * Number of recipients of the email, copies included.
+     */
+    private final int recipientCount;
+
+    /**
+     * Delivery attempts made, 0 if the email never reached a relay. For an envelope sent in chunks,
+     * the most any chunk needed.
+     */
+    private final int attempts;
+
+    /**
+     * The SMTP reply code the email was accepted or last rejected with, -1 when there was none.
+     */
+    private final int replyCode;
+
+    /**
+     * When the email was sent, in milliseconds since the epoch.
+     */
+    private final long submitted;
+
+    /**
+     * Milliseconds from sending the email to its receipt, rendering, queueing and retries included.
+     */
+    private final long elapsed;
+
+    public PostageReceipt(final Boolean success, final Email email, final String messageId,
+                          final Throwable throwable) {
+        this(success, email, messageId, throwable, success || email == null ? Collections.emptyList()
+                : email.getAllRecipients());
+    }
+
+    public PostageReceipt(final Boolean success, final Email email, final String messageId,
+                          final Throwable throwable, final List<Contact> failedRecipients) {
+        this(success, email, messageId, throwable, failedRecipients,
+                email != null ? email.getMetadata() : Collections.emptyMap(),
+                email != null ? email.getRecipientCount() : 0, 0, -1, 0L, 0L);
+    }
+
+    /**
+     * Whether the receipt was issued without the email.
+     */
+    public boolean isCompact() {
+        return email == null;
+    }
+
 }
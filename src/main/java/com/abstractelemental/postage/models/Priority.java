@@ -0,0 +1,40 @@
+package com.abstractelemental.postage.models;
+
+import lombok.Getter;
+
+/**
+ * Priority decides which lane of the Post Office queues an email waits in. Lanes are served in
+ * proportion to their weight, so a high priority email waits for at most a handful of others even
+ * when a mail merge has filled the low priority lane.
+ */
+
+public enum Priority {
+
+    /**
+     * Transactional mail a user is waiting for: password resets, sign-in codes. May also use the
+     * {@link SMTPSettings#getReservedConnections()}.
+     */
+    HIGH(16),
+
+    /**
+     * The default.
+     */
+    NORMAL(4),
+
+    /**
+     * Marketing and other bulk mail. Mail merges are sent with this priority unless their envelope
+     * has one.
+     */
+    LOW(1);
+
+    /**
+     * Emails taken from this lane for every one taken from a lane of weight 1, while both have some.
+     */
+    @Getter
+    private final int weight;
+
+    Priority(final int weight) {
+        this.weight = weight;
+    }
+
+}
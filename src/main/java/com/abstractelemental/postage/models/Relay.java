@@ -0,0 +1,60 @@
+package com.abstractelemental.postage.models;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.validation.Valid;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.io.Serializable;
+
+/**
+ * Relay is one of several SMTP relays a Post Office balances its mail between, see
+ * {@link SMTPSettings#getRelays()}. A relay without a username and password uses the ones of the
+ * SMTPSettings; the TLS settings and bounce address are always shared.
+ */
+
+@Getter
+@Setter
+public class Relay implements Serializable {
+
+    private static final long serialVersionUID = -2139514026871904622L;
+
+    @Valid
+    @NotNull
+    private String host;
+
+    @Valid
+    private int port;
+
+    private String username;
+
+    private String password;
+
+    /**
+     * Share of the mail this relay takes relative to the others, all else being equal. A relay of
+     * weight 2 is sent twice as much as a relay of weight 1 that is just as fast and just as busy.
+     */
+    @Valid
+    @Min(1)
+    private int weight = 1;
+
+    /**
+     * Messages per second this relay may be sent, 0 for no limit. See
+     * {@link SMTPSettings#getRateLimit()}.
+     */
+    @Valid
+    @DecimalMin("0.0")
+    private double rateLimit;
+
+    public Relay() {
+    }
+
+    public Relay(final String host, final int port, final int weight) {
+        this.host = host;
+        this.port = port;
+        this.weight = weight;
+    }
+
+}
@@ -1,13 +1,25 @@
 package com.abstractelemental.postage.models;
 
+import com.abstractelemental.postage.metrics.PostageMetrics;
+import com.abstractelemental.postage.transport.PostageTransport;
+import freemarker.cache.TemplateLoader;
 import lombok.Getter;
 import lombok.Setter;
 
 import javax.validation.Valid;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * SMTPSettings defines all of the parameters for the PostOffice Object. Every
@@ -44,6 +56,114 @@ public class SMTPSettings implements Serializable {
     @NotNull
     private Class<?> classForTemplateLoading;
 
+    /**
+     * Templates by name, looked up before any other template source.
+     */
+    @Valid
+    @NotNull
+    private Map<String, String> templates = new HashMap<>();
+
+    /**
+     * Further template sources, looked up after the in-memory templates and before the template
+     * directory. Not serialized with the settings.
+     */
+    @Valid
+    @NotNull
+    private transient List<TemplateLoader> templateLoaders = new ArrayList<>();
+
+    /**
+     * Directory to look templates up in before the classpath, so they can be changed without a
+     * redeploy.
+     */
+    private String templateDirectory;
+
+    /**
+     * Number of parsed templates that stay cached however short memory gets. Templates pulled in with
+     * #include or #import are cached apart, by Freemarker, up to 16 of them strongly and 64 more softly.
+     */
+    @Valid
+    @Min(0)
+    private int templateCacheStrongSize = 32;
+
+    /**
+     * Number of parsed templates, beyond the strong ones, that stay cached until the garbage
+     * collector needs the memory.
+     */
+    @Valid
+    @Min(0)
+    private int templateCacheSoftSize = 512;
+
+    /**
+     * Milliseconds between checks of the cached templates for changes at their source, 0 to never
+     * check. Changed templates are parsed again in the background, renders never wait for them.
+     */
+    @Valid
+    @Min(0)
+    private long templateCacheTtl = 5000L;
+
+    /**
+     * SMTP relays to balance the mail between, each with its own connection pool. When empty, the
+     * host, port, username and password above are the only relay; when set, they are ignored.
+     * Every email goes to the relay with the fewest emails in flight for its recent latency and
+     * weight, and a relay that keeps failing is taken out of rotation for relayRecoveryDelay.
+     */
+    @Valid
+    private List<Relay> relays = new ArrayList<>();
+
+    /**
+     * Consecutive transient failures (no reply, or a 4xx reply) after which a relay is taken out of
+     * rotation.
+     */
+    @Valid
+    @Min(1)
+    private int relayFailureThreshold = 3;
+
+    /**
+     * Milliseconds a relay stays out of rotation before it is tried again.
+     */
+    @Valid
+    @Min(1)
+    private long relayRecoveryDelay = 30000L;
+
+    /**
+     * Messages per second sent in total, 0 for no limit. Emails over the limit wait for their turn
+     * instead of failing, without holding a delivery thread. The rate limits (this one, the domain
+     * ones and those of the relays) adapt: they are halved whenever a relay answers with one of the
+     * throttleReplyCodes and recover as mail goes through again.
+     */
+    @Valid
+    @DecimalMin("0.0")
+    private double rateLimit;
+
+    /**
+     * Messages that may go at once under each rate limit after a quiet period.
+     */
+    @Valid
+    @Min(1)
+    private int rateLimitBurst = 1;
+
+    /**
+     * Messages per second sent to each recipient domain without a limit of its own in
+     * domainRateLimits, 0 for no limit. An email to several domains waits for all of them.
+     */
+    @Valid
+    @DecimalMin("0.0")
+    private double domainRateLimit;
+
+    /**
+     * Messages per second sent to specific recipient domains (lower case, e.g. "gmail.com").
+     */
+    @Valid
+    @NotNull
+    private Map<String, Double> domainRateLimits = new HashMap<>();
+
+    /**
+     * SMTP reply codes meaning the relay wants us to slow down.
+     */
+    @Valid
+    @NotNull
+    private Set<Integer> throttleReplyCodes = new HashSet<>(Arrays.asList(421, 451, 454));
+
     @Valid
     private boolean startTLSRequired = Boolean.FALSE;
 
@@ -53,10 +173,60 @@ public class SMTPSettings implements Serializable {
     @Valid
     private boolean sslOnConnect = Boolean.FALSE;
 
+    /**
+     * Number of threads delivering emails to the SMTP relay.
+     */
     @Valid
     @Min(1)
     private int executorThreadCount = 1;
 
+    /**
+     * Deliver on virtual threads, one per pooled SMTP connection (of every relay), instead of on
+     * executorThreadCount platform threads. Delivery is blocking network I/O, so a virtual thread
+     * waiting on the relay costs next to nothing and the pool size alone sets the concurrency.
+     * <p>
+     * Requires Java 21 and the native transport without TLS (see {@link #isNativeTransport()}), or a
+     * custom {@link #getTransport()}: JavaMail's SMTP transport is synchronized, and a virtual thread
+     * blocked on the network inside it would pin its carrier thread. Otherwise the Post Office logs a
+     * warning and uses platform threads.
+     * Before Java 24, writing a multipart message still pins the carrier for as long as the write
+     * blocks, since JavaMail writes multipart bodies under a lock.
+     */
+    @Valid
+    private boolean virtualThreads = Boolean.FALSE;
+
+    /**
+     * Adapt the number of emails delivered at once to how the relays respond, instead of keeping it
+     * at executorThreadCount (or the connections, on virtual threads), which is where it starts.
+     * It grows while the relays keep up and is cut back when their latency climbs or they answer
+     * with 4xx replies or not at all. See {@link #getMinConcurrency()} and
+     * {@link #getMaxConcurrency()}.
+     */
+    @Valid
+    private boolean adaptiveConcurrency = Boolean.FALSE;
+
+    /**
+     * Fewest emails delivered at once under adaptive concurrency.
+     */
+    @Valid
+    @Min(1)
+    private int minConcurrency = 1;
+
+    /**
+     * Most emails delivered at once under adaptive concurrency, never more than the connections of
+     * every relay together.
+     */
+    @Valid
+    @Min(1)
+    private int maxConcurrency = 64;
+
+    /**
+     * Number of threads rendering Freemarker templates and building MIME messages ahead of delivery.
+     */
+    @Valid
+    @Min(1)
+    private int renderThreadCount = 1;
+
     @Valid
     private boolean retryOnFailure = Boolean.TRUE;
 
@@ -64,4 +234,182 @@ public class SMTPSettings implements Serializable {
     @Min(1)
     private int retryCount = 5;
 
+    /**
+     * Milliseconds to wait before the first retry. Every further retry waits twice as long as the
+     * previous one, up to retryMaxDelay.
+     */
+    @Valid
+    @Min(1)
+    private long retryDelay = 5000L;
+
+    @Valid
+    @Min(1)
+    private long retryMaxDelay = 300000L;
+
+    /**
+     * Randomly moves each retry delay by up to this fraction of itself so that emails that failed
+     * together do not all hit the relay again at the same moment.
+     */
+    @Valid
+    @DecimalMin("0.0")
+    @DecimalMax("1.0")
+    private double retryJitter = 0.25;
+
+    /**
+     * Maximum number of emails of each {@link Priority} waiting in each of the render and delivery
+     * queues, which have a lane per priority: each queue holds up to three times this many emails.
+     * Unbounded by default; set it so an SMTP outage cannot fill the heap with queued emails.
+     */
+    @Valid
+    @Min(1)
+    private int laneCapacity = Integer.MAX_VALUE;
+
+    /**
+     * What to do with an email sent while its lane of the render queue is full. The delivery queue always
+     * blocks the render threads, pushing back on the render queue.
+     */
+    @Valid
+    @NotNull
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    /**
+     * Maximum number of authenticated SMTP connections kept open by the Post Office (to each relay).
+     * Sends beyond this number wait for a connection to be returned to the pool. 0, the default,
+     * opens as many as there are delivery threads, see {@link #getExecutorThreadCount()}.
+     */
+    @Valid
+    @Min(0)
+    private int connectionPoolSize = 0;
+
+    /**
+     * Number of messages sent over a single connection before it is closed and replaced. Many
+     * relays cap the number of transactions per session.
+     */
+    @Valid
+    @Min(1)
+    private int maxMessagesPerConnection = 100;
+
+    /**
+     * Connections of each pool only {@link Priority#HIGH} emails may use, so that they do not wait
+     * for a connection behind other mail. At least one connection is always left for other mail.
+     */
+    @Valid
+    @Min(0)
+    private int reservedConnections = 0;
+
+    /**
+     * Most recipients (copies included) sent to in one SMTP transaction; relays reject envelopes
+     * beyond their RCPT limit. A larger envelope is split into chunks grouped by recipient domain
+     * that are delivered in parallel, sharing one MIME message, and merged into a single receipt.
+     */
+    @Valid
+    @Min(1)
+    private int maxRecipientsPerMessage = 100;
+
+    /**
+     * Send with Postage's own SMTP client instead of JavaMail's. It pipelines MAIL FROM with every
+     * RCPT TO, and with DATA unless the relay offers CHUNKING for BDAT chunks, saving a round trip per
+     * recipient. Plaintext only: with sslOnConnect or startTLSRequired the
+     * Post Office logs a warning and uses JavaMail.
+     */
+    @Valid
+    private boolean nativeTransport = Boolean.FALSE;
+
+    /**
+     * Issue receipts without the email, see {@link PostageReceipt#isCompact()}. Once an email is
+     * rendered only its envelope is kept for the receipt, so its view can be collected right away and
+     * its attachments once delivered, and callbacks that hold on to receipts do not hold on to whole
+     * emails.
+     */
+    @Valid
+    private boolean compactReceipts = Boolean.FALSE;
+
+    /**
+     * Milliseconds the idempotency key of a sent email is remembered, repeats within it are answered
+     * with the receipt of the first send. A failed send is forgotten so it can be retried. 0 turns
+     * deduplication off.
+     */
+    @Valid
+    @Min(0)
+    private long deduplicationWindow = 600000L;
+
+    /**
+     * Most idempotency keys remembered, the oldest are forgotten first beyond it.
+     */
+    @Valid
+    @Min(1)
+    private int deduplicationCapacity = 100000;
+
+    /**
+     * File the idempotency keys of delivered emails are kept in, so that repeats are recognised
+     * across restarts. Keys are only kept in memory when not set.
+     */
+    private String deduplicationFile;
+
+    /**
+     * Milliseconds a pooled connection may sit idle before it is closed.
+     */
+    @Valid
+    @Min(1)
+    private long connectionIdleTimeout = 30000L;
+
+    /**
+     * Directory for the durable outbox. When set, every email is journaled there before send returns
+     * and a new Post Office on the same directory replays whatever was not delivered yet. Emails
+     * (including their freemarkerView and metadata) must be serializable to be journaled.
+     */
+    private String outboxDirectory;
+
+    /**
+     * Size in bytes of each outbox segment file.
+     */
+    @Valid
+    @Min(4096)
+    private int outboxSegmentSize = 64 * 1024 * 1024;
+
+    /**
+     * Milliseconds between batched fsyncs of the outbox.
+     */
+    @Valid
+    @Min(1)
+    private long outboxFlushInterval = 100L;
+
+    /**
+     * Maximum number of emails of a single {@code sendBulk} mail merge that are rendered or awaiting
+     * delivery at any one time. The recipient stream is only read as fast as this window allows.
+     */
+    @Valid
+    @Min(1)
+    private int bulkWindow = 1000;
+
+    /**
+     * Bytes of already transfer-encoded attachments and bodies to share between messages, so that
+     * the same attachment sent to many recipients is only read and encoded once. 0 disables the cache.
+     */
+    @Valid
+    @Min(0)
+    private long encodedPartCacheSize = 32L * 1024 * 1024;
+
+    /**
+     * Keep the shared encoded parts in direct buffers, outside the Java heap.
+     */
+    @Valid
+    private boolean encodedPartCacheOffHeap = Boolean.FALSE;
+
+    /**
+     * Where the Post Office reports stage timings, outcomes and queue and pool gauges. Not
+     * serialized with the settings.
+     */
+    @Valid
+    @NotNull
+    private transient PostageMetrics metrics = PostageMetrics.NONE;
+
+    /**
+     * Where the Post Office hands its messages over instead of the SMTP relays, e.g. a
+     * {@link com.abstractelemental.postage.transport.CaptureTransport} to test or load test without a
+     * relay. The relay, connection pool and native transport settings are ignored when set, and the
+     * Post Office closes it when it closes. Not serialized with the settings.
+     */
+    private transient PostageTransport transport;
+
 }
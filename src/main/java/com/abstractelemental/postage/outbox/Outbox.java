@@ -0,0 +1,325 @@
+package com.abstractelemental.postage.outbox;
+
+import com.abstractelemental.postage.models.Email;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Outbox is an append-only journal of the emails a Post Office has accepted but not yet settled
+ * (delivered, or definitively failed). It lets a restarted Post Office pick up where the previous
+ * one left off.
+ * <p>
+ * The journal is a directory of memory-mapped segment files. Appending an email is a serialization
+ * plus a copy into the mapped segment, so it survives the JVM dying as soon as
+ * {@link #append(Email)} returns. The segments are forced to disk in batches every flush interval,
+ * which bounds what an operating system crash or power loss can take with it.
+ * <p>
+ * The segment being written rolls over once it is full. Old segments are deleted oldest first once
+ * every email in them has settled. When less than half of the oldest segment is still unsettled it
+ * is compacted by copying those emails into the current segment, so that a few stuck emails cannot
+ * pin every segment behind them.
+ */
+
+@Slf4j
+public class Outbox implements AutoCloseable {
+
+    private static final int COMPACT_BELOW_LIVE_PERCENT = 50;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Map<Long, Location> live = new LinkedHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final ThreadLocal<SerializationBuffer> buffers = ThreadLocal.withInitial(SerializationBuffer::new);
+
+    private long nextId = 1L;
+    private long nextSequence = 1L;
+    private Map<Long, Email> recovered;
+    private boolean closed;
+
+    /**
+     * Opens (or creates) the journal in the directory and reads back every unsettled email, which
+     * can then be collected once with {@link #recover()}.
+     *
+     * @param directory     to keep the segment files in
+     * @param segmentSize   size in bytes of each segment file
+     * @param flushInterval milliseconds between forcing the segments to disk
+     */
+    public Outbox(final Path directory, final int segmentSize, final long flushInterval) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+
+        open();
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "postage-outbox-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushAndCompact, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the emails left unsettled by a previous run, in the order they were accepted. The
+     * entries stay in the journal until they are settled. Subsequent calls return an empty map.
+     */
+    public synchronized Map<Long, Email> recover() {
+        final Map<Long, Email> emails = recovered;
+        recovered = new LinkedHashMap<>();
+        return emails;
+    }
+
+    /**
+     * Journals the email.
+     *
+     * @return the journal id to settle the email with
+     * @throws IOException if the email (i.e. its view, metadata or attachments) is not serializable
+     *                     or the journal cannot be written
+     */
+    public long append(final Email email) throws IOException {
+        final SerializationBuffer bytes = buffers.get();
+        bytes.reset();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(email);
+        }
+
+        synchronized (this) {
+            ensureOpen();
+            final long id = nextId++;
+            final Location location = write(Segment.ENQUEUED, id, bytes.array(), bytes.size());
+            location.getSegment().addLive(location.getOffset(), 1);
+            live.put(id, location);
+            return id;
+        }
+    }
+
+    /**
+     * Marks the email as no longer needing delivery, it will not be recovered again.
+     */
+    public synchronized void settle(final long id) {
+        final Location location = live.remove(id);
+        if (location == null || closed) {
+            return;
+        }
+
+        location.getSegment().addLive(location.getOffset(), -1);
+        try {
+            write(Segment.SETTLED, id, null, 0);
+        } catch (final IOException e) {
+            log.error("Unable to journal that email {} was settled, it may be sent again after a restart", id, e);
+        }
+    }
+
+    /**
+     * Number of emails appended (or recovered) and not yet settled.
+     */
+    public synchronized int getPendingCount() {
+        return live.size();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdownNow();
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            segments.forEach(segment -> {
+                segment.force();
+                segment.close();
+            });
+        }
+    }
+
+    private void open() throws IOException {
+        final List<Path> paths;
+        try (Stream<Path> files = Files.list(directory)) {
+            paths = files.filter(Segment::isSegment).sorted().collect(Collectors.toList());
+        }
+
+        final Map<Long, Segment> owners = new HashMap<>();
+        final Map<Long, Integer> offsets = new LinkedHashMap<>();
+
+        for (final Path path : paths) {
+            final Segment segment = Segment.open(path);
+            nextSequence = Math.max(nextSequence, segment.getSequence() + 1);
+            segments.addLast(segment);
+            segment.scan(record -> {
+                nextId = Math.max(nextId, record.getId() + 1);
+                if (record.getType() == Segment.ENQUEUED) {
+                    owners.put(record.getId(), segment);
+                    offsets.put(record.getId(), record.getOffset());
+                } else {
+                    owners.remove(record.getId());
+                    offsets.remove(record.getId());
+                }
+            });
+        }
+
+        recovered = new LinkedHashMap<>();
+        for (final Map.Entry<Long, Integer> entry : offsets.entrySet()) {
+            final Segment segment = owners.get(entry.getKey());
+            final Location location = new Location(segment, entry.getValue());
+            try {
+                recovered.put(entry.getKey(), deserialize(segment.payload(entry.getValue())));
+                segment.addLive(location.getOffset(), 1);
+                live.put(entry.getKey(), location);
+            } catch (final IOException | ClassNotFoundException e) {
+                log.error("Unable to read email {} back from the outbox, skipping it", entry.getKey(), e);
+            }
+        }
+
+        if (!recovered.isEmpty()) {
+            log.info("Recovered {} unsettled emails from the outbox in {}", recovered.size(), directory);
+        }
+
+        segments.removeIf(segment -> {
+            if (segment.getRecords() == 0) {
+                segment.delete();
+                return true;
+            }
+            return false;
+        });
+
+        // never append to a segment written by a previous run, its tail may be torn
+        segments.addLast(Segment.create(directory, nextSequence++, segmentSize));
+    }
+
+    private Location write(final byte type, final long id, final byte[] payload, final int length) throws IOException {
+        Segment active = segments.peekLast();
+        if (!active.hasRoom(length)) {
+            active.takeDirty();
+            active.force();
+            active = Segment.create(directory, nextSequence++, Math.max(segmentSize, Segment.HEADER_LENGTH + length));
+            segments.addLast(active);
+        }
+        return new Location(active, active.append(type, id, payload, length));
+    }
+
+    /**
+     * Forces the segments written since the last flush outside the lock, so appends carry on while
+     * the disk catches up.
+     */
+    private void flushAndCompact() {
+        try {
+            final List<Segment> dirty;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                dirty = segments.stream().filter(Segment::takeDirty).collect(Collectors.toList());
+            }
+
+            dirty.forEach(Segment::force);
+
+            synchronized (this) {
+                if (!closed) {
+                    compact();
+                }
+            }
+        } catch (final IOException | RuntimeException e) {
+            log.error("Unable to flush the outbox", e);
+        }
+    }
+
+    /**
+     * Only the oldest segment is ever removed. Settled records always live in the same or a newer
+     * segment than the email they settle, so removing oldest first never brings a settled email back.
+     */
+    private void compact() throws IOException {
+        while (segments.size() > 1) {
+            final Segment oldest = segments.peekFirst();
+
+            if (oldest.getLive() > 0 && oldest.getLiveBytes() * 100 >= (long) oldest.getPosition() * COMPACT_BELOW_LIVE_PERCENT) {
+                return;
+            }
+
+            final Iterator<Map.Entry<Long, Location>> it = live.entrySet().iterator();
+            final List<Map.Entry<Long, Location>> moved = new ArrayList<>();
+            while (it.hasNext() && moved.size() < oldest.getLive()) {
+                final Map.Entry<Long, Location> entry = it.next();
+                if (entry.getValue().getSegment() == oldest) {
+                    moved.add(entry);
+                }
+            }
+
+            for (final Map.Entry<Long, Location> entry : moved) {
+                final byte[] payload = oldest.payload(entry.getValue().getOffset());
+                final Location location = write(Segment.ENQUEUED, entry.getKey(), payload, payload.length);
+                location.getSegment().addLive(location.getOffset(), 1);
+                entry.setValue(location);
+            }
+
+            final Segment active = segments.peekLast();
+            active.takeDirty();
+            active.force();
+            segments.pollFirst().delete();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The outbox is closed");
+        }
+    }
+
+    private static Email deserialize(final byte[] payload) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return (Email) in.readObject();
+        }
+    }
+
+    @AllArgsConstructor
+    @Getter
+    private static final class Location {
+
+        private final Segment segment;
+        private final int offset;
+
+    }
+
+    /**
+     * Reused per thread so that serializing an email does not allocate a fresh buffer (and then copy
+     * it) every time.
+     */
+    private static final class SerializationBuffer extends ByteArrayOutputStream {
+
+        private SerializationBuffer() {
+            super(4096);
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+
+    }
+
+}
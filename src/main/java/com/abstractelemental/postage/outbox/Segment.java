@@ -0,0 +1,196 @@
+package com.abstractelemental.postage.outbox;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Segment is one memory-mapped file of the outbox journal. Records are appended back to back:
+ * <pre>
+ * int  length   (header + payload, 0 marks the end of the segment)
+ * int  crc      (CRC32 of type, id and payload)
+ * byte type
+ * long id
+ * byte[] payload
+ * </pre>
+ * A record whose CRC does not match (a torn write) ends the segment as well.
+ */
+
+@Slf4j
+@Getter
+class Segment {
+
+    static final int HEADER_LENGTH = 4 + 4 + 1 + 8;
+
+    static final byte ENQUEUED = 1;
+    static final byte SETTLED = 2;
+
+    private static final String PREFIX = "outbox-";
+    private static final String SUFFIX = ".log";
+
+    private final long sequence;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    private int position;
+    private int records;
+    private int live;
+    private long liveBytes;
+    private boolean dirty;
+
+    private Segment(final long sequence, final Path path, final FileChannel channel, final int size) throws IOException {
+        this.sequence = sequence;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    static Segment create(final Path directory, final long sequence, final int size) throws IOException {
+        final Path path = directory.resolve(String.format("%s%020d%s", PREFIX, sequence, SUFFIX));
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new Segment(sequence, path, channel, size);
+    }
+
+    static Segment open(final Path path) throws IOException {
+        final String name = path.getFileName().toString();
+        final long sequence = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(sequence, path, channel, (int) channel.size());
+    }
+
+    static boolean isSegment(final Path path) {
+        final String name = path.getFileName().toString();
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+    }
+
+    /**
+     * Reads every intact record from the start of the segment and leaves the write position right
+     * after the last one.
+     */
+    void scan(final Consumer<Record> visitor) {
+        position = 0;
+        while (buffer.capacity() - position >= HEADER_LENGTH) {
+            final int length = buffer.getInt(position);
+            if (length < HEADER_LENGTH || length > buffer.capacity() - position) {
+                break;
+            }
+
+            final int crc = buffer.getInt(position + 4);
+            if (crc != checksum(position, length)) {
+                log.warn("Outbox segment {} has a torn record at offset {}, ignoring the rest of it", path, position);
+                break;
+            }
+
+            visitor.accept(new Record(buffer.get(position + 8), buffer.getLong(position + 9), position));
+            records++;
+            position += length;
+        }
+    }
+
+    boolean hasRoom(final int payloadLength) {
+        return buffer.capacity() - position >= HEADER_LENGTH + payloadLength;
+    }
+
+    /**
+     * @return the offset of the appended record
+     */
+    int append(final byte type, final long id, final byte[] payload, final int payloadLength) {
+        final int offset = position;
+        final int length = HEADER_LENGTH + payloadLength;
+
+        buffer.put(offset + 8, type);
+        buffer.putLong(offset + 9, id);
+        if (payloadLength > 0) {
+            final ByteBuffer target = buffer.duplicate();
+            target.position(offset + HEADER_LENGTH);
+            target.put(payload, 0, payloadLength);
+        }
+        buffer.putInt(offset + 4, checksum(offset, length));
+        buffer.putInt(offset, length);
+
+        position += length;
+        records++;
+        dirty = true;
+        return offset;
+    }
+
+    byte[] payload(final int offset) {
+        final byte[] payload = new byte[buffer.getInt(offset) - HEADER_LENGTH];
+        final ByteBuffer source = buffer.duplicate();
+        source.position(offset + HEADER_LENGTH);
+        source.get(payload);
+        return payload;
+    }
+
+    void addLive(final int offset, final int sign) {
+        live += sign;
+        liveBytes += sign * buffer.getInt(offset);
+    }
+
+    /**
+     * Clears the dirty flag, returning whether it was set. Appends after this call set it again, so
+     * a flush that forces outside the outbox lock never loses track of a write.
+     */
+    boolean takeDirty() {
+        final boolean wasDirty = dirty;
+        dirty = false;
+        return wasDirty;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            log.debug("Unable to close outbox segment {}", path, e);
+        }
+    }
+
+    void delete() {
+        close();
+        try {
+            Files.deleteIfExists(path);
+        } catch (final IOException e) {
+            log.warn("Unable to delete outbox segment {}", path, e);
+        }
+    }
+
+    private int checksum(final int offset, final int length) {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset + 8);
+
+        final CRC32 crc = new CRC32();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    @Getter
+    static final class Record {
+
+        private final byte type;
+        private final long id;
+        private final int offset;
+
+        private Record(final byte type, final long id, final int offset) {
+            this.type = type;
+            this.id = id;
+            this.offset = offset;
+        }
+
+    }
+
+}
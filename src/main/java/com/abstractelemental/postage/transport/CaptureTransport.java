@@ -0,0 +1,192 @@
+package com.abstractelemental.postage.transport;
+
+import com.abstractelemental.postage.models.Priority;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.commons.mail.EmailException;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CaptureTransport takes every message without any network I/O, for tests and for load testing the
+ * Post Office on its own. Each message is still written out in full, into a sink that only counts
+ * the bytes, so the cost of encoding it is measured as it would be on the wire.
+ * <p>
+ * The first messages, up to the number to retain, are kept with their envelope recipients to be
+ * inspected; beyond it only the counts grow. A load test sending millions of messages should retain
+ * none. Closing the transport keeps what was captured, so it can be looked at after the Post Office
+ * has closed.
+ */
+
+public class CaptureTransport implements PostageTransport {
+
+    private final Session session = Session.getInstance(new Properties());
+    private final int retain;
+    private final int capacity;
+    private final Queue<CapturedMessage> captured = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger retained = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder recipients = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * Retains every message.
+     */
+    public CaptureTransport() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param retain most messages kept to be inspected, 0 to only count them
+     */
+    public CaptureTransport(final int retain) {
+        this(retain, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param retain   most messages kept to be inspected, 0 to only count them
+     * @param capacity most messages sent at once, which caps adaptive concurrency
+     */
+    public CaptureTransport(final int retain, final int capacity) {
+        this.retain = retain;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public String send(final MimeMessage message, final Priority priority) throws EmailException {
+        try {
+            message.saveChanges();
+            return send(message, message.getAllRecipients(), priority);
+        } catch (final MessagingException e) {
+            throw new EmailException("Unable to capture the message", e);
+        }
+    }
+
+    @Override
+    public String send(final MimeMessage message, final Address[] recipients, final Priority priority)
+            throws EmailException {
+        active.incrementAndGet();
+        try {
+            final Address[] envelope = recipients != null ? recipients : message.getAllRecipients();
+            final Sink sink = new Sink();
+            // the relay would strip the blind copies too
+            message.writeTo(sink, new String[]{"Bcc"});
+
+            messages.increment();
+            this.recipients.add(envelope != null ? envelope.length : 0);
+            bytes.add(sink.count);
+            if (retained.get() < retain && retained.incrementAndGet() <= retain) {
+                captured.add(new CapturedMessage(message, envelope != null
+                        ? Arrays.asList(envelope) : Collections.emptyList()));
+            }
+            return message.getMessageID();
+        } catch (final MessagingException | IOException e) {
+            throw new EmailException("Unable to capture the message", e);
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Number of messages sent.
+     */
+    public long getMessageCount() {
+        return messages.sum();
+    }
+
+    /**
+     * Number of envelope recipients of every message sent.
+     */
+    public long getRecipientCount() {
+        return recipients.sum();
+    }
+
+    /**
+     * Bytes of every message sent, as they would have gone on the wire.
+     */
+    public long getByteCount() {
+        return bytes.sum();
+    }
+
+    /**
+     * The messages retained, in the order they were sent.
+     */
+    public List<CapturedMessage> getMessages() {
+        return new ArrayList<>(captured);
+    }
+
+    /**
+     * Forgets every message and resets the counts.
+     */
+    public void clear() {
+        captured.clear();
+        retained.set(0);
+        messages.reset();
+        recipients.reset();
+        bytes.reset();
+    }
+
+    @Override
+    public Session getSession() {
+        return session;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    @Override
+    public void close() {
+        // nothing to release, and the captures outlive the Post Office
+    }
+
+    /**
+     * A message as it was sent, and who it was sent to.
+     */
+    @AllArgsConstructor
+    @Getter
+    public static final class CapturedMessage {
+
+        private final MimeMessage message;
+        private final List<Address> recipients;
+
+    }
+
+    private static final class Sink extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+
+    }
+
+}
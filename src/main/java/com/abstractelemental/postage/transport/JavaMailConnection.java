@@ -0,0 +1,74 @@
+package com.abstractelemental.postage.transport;
+
+import com.sun.mail.smtp.SMTPTransport;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.MimeMessage;
+import java.io.OutputStream;
+
+/**
+ * JavaMailConnection sends over a connected JavaMail {@link Transport}, one command and its reply at
+ * a time. The transport tells the connection when the relay accepts MAIL FROM and when the message
+ * body starts, so that the pool knows how far a failed send got.
+ */
+
+@Slf4j
+class JavaMailConnection extends SMTPConnection {
+
+    private final Transport transport;
+
+    /**
+     * Connects and authenticates with the settings of the session.
+     */
+    JavaMailConnection(final Session session) throws MessagingException {
+        final String protocol = session.getProperty("mail.transport.protocol") != null
+                ? session.getProperty("mail.transport.protocol") : "smtp";
+        this.transport = new SMTPTransport(session, new URLName(protocol, null, -1, null, null, null), protocol,
+                "smtps".equals(protocol)) {
+
+            @Override
+            protected void mailFrom() throws MessagingException {
+                super.mailFrom();
+                markMailAccepted();
+            }
+
+            @Override
+            protected OutputStream data() throws MessagingException {
+                final OutputStream body = super.data();
+                markBodySent();
+                return body;
+            }
+
+        };
+        transport.connect();
+    }
+
+    @Override
+    protected void transmit(final MimeMessage message, final Address[] recipients) throws MessagingException {
+        transport.sendMessage(message, recipients);
+    }
+
+    /**
+     * JavaMail closes the underlying socket when the server answers the NOOP with 421 or does not
+     * answer at all.
+     */
+    @Override
+    boolean isAlive() {
+        return transport.isConnected();
+    }
+
+    @Override
+    void close() {
+        try {
+            transport.close();
+        } catch (final MessagingException e) {
+            log.debug("Unable to cleanly close SMTP connection", e);
+        }
+    }
+
+}
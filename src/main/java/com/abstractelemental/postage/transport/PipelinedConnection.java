@@ -0,0 +1,509 @@
+package com.abstractelemental.postage.transport;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPOutputStream;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import com.sun.mail.util.CRLFOutputStream;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * PipelinedConnection is Postage's own SMTP client, writing to a {@link SocketChannel} from reused
+ * buffers with gathering writes. When the relay supports them it sends MAIL FROM and every RCPT TO
+ * as one batch (PIPELINING, RFC 2920) and the message as BDAT chunks that do not wait for each
+ * other's reply (CHUNKING, RFC 3030). A message then costs two round trips however many recipients
+ * it has, where JavaMail waits for a reply to every command. Without CHUNKING, DATA ends the batch
+ * and the message follows its 354, two round trips as well; without PIPELINING every command waits
+ * for its reply.
+ * <p>
+ * The message is only sent once every recipient has been accepted, otherwise the transaction is
+ * reset, the same as JavaMail does by default. A pipelined DATA the relay already answered with 354
+ * cannot be reset, the connection is closed instead, which aborts the transaction. Failures are thrown as the exceptions JavaMail's
+ * SMTPTransport throws, so {@link SMTPReply} and the pool tell them apart the same way.
+ * <p>
+ * Only plaintext connections are supported, authenticated with AUTH PLAIN or LOGIN.
+ */
+
+@Slf4j
+class PipelinedConnection extends SMTPConnection {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String[] IGNORED_HEADERS = {"Bcc", "Content-Length"};
+    private static final byte[] END_OF_DATA = {'.', '\r', '\n'};
+    private static final String LOCAL_HOST = localHost();
+
+    private final SocketChannel channel;
+    private final InputStream input;
+    private final String sender;
+    private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final StringBuilder line = new StringBuilder();
+    private final Map<String, String> extensions = new HashMap<>();
+
+    private boolean pipelining;
+    private boolean chunking;
+
+    private PipelinedConnection(final SocketChannel channel, final String sender) throws IOException {
+        this.channel = channel;
+        this.input = channel.socket().getInputStream();
+        this.sender = sender;
+        in.flip();
+    }
+
+    /**
+     * Connects, says EHLO and authenticates if a username is given and the relay offers AUTH.
+     *
+     * @param sender  the envelope sender (MAIL FROM), or null to use the From of each message
+     * @param timeout milliseconds to wait for the connection and for every reply
+     */
+    static PipelinedConnection open(final String host, final int port, final String username,
+                                    final String password, final String sender, final int timeout)
+            throws MessagingException {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setSoTimeout(timeout);
+            channel.socket().connect(new InetSocketAddress(host, port), timeout);
+
+            final PipelinedConnection connection = new PipelinedConnection(channel, sender);
+            connection.handshake(username, password);
+            return connection;
+        } catch (final IOException | MessagingException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (final IOException closeFailure) {
+                    log.debug("Unable to close SMTP channel", closeFailure);
+                }
+            }
+            if (e instanceof MessagingException) {
+                throw (MessagingException) e;
+            }
+            throw new MessagingException("Could not connect to SMTP host: " + host + ", port: " + port, e);
+        }
+    }
+
+    private void handshake(final String username, final String password) throws IOException, MessagingException {
+        Reply reply = read();
+        if (reply.code != 220) {
+            throw new MessagingException("Could not connect to SMTP host, response: " + reply);
+        }
+
+        reply = command("EHLO " + LOCAL_HOST);
+        if (reply.code == 250) {
+            final String[] lines = reply.text.split("\n");
+            for (int i = 1; i < lines.length; i++) {
+                final String[] extension = lines[i].trim().split(" ", 2);
+                extensions.put(extension[0].toUpperCase(Locale.ROOT), extension.length > 1 ? extension[1] : "");
+            }
+        } else if ((reply = command("HELO " + LOCAL_HOST)).code != 250) {
+            throw new MessagingException("Relay did not accept HELO: " + reply);
+        }
+        pipelining = extensions.containsKey("PIPELINING");
+        chunking = extensions.containsKey("CHUNKING");
+
+        if (username != null && extensions.containsKey("AUTH")) {
+            authenticate(username, password);
+        }
+    }
+
+    private void authenticate(final String username, final String password) throws IOException, MessagingException {
+        final List<String> mechanisms = Arrays.asList(extensions.get("AUTH").toUpperCase(Locale.ROOT).split(" "));
+        final Reply reply;
+        if (mechanisms.contains("PLAIN")) {
+            reply = command("AUTH PLAIN " + base64("\0" + username + "\0" + password));
+        } else if (mechanisms.contains("LOGIN")) {
+            if (command("AUTH LOGIN").code != 334 || command(base64(username)).code != 334) {
+                throw new AuthenticationFailedException("Relay did not accept AUTH LOGIN");
+            }
+            reply = command(base64(password));
+        } else {
+            throw new AuthenticationFailedException("No AUTH mechanism in common with the relay: " + mechanisms);
+        }
+
+        if (reply.code != 235) {
+            throw new AuthenticationFailedException(reply.text);
+        }
+    }
+
+    @Override
+    protected void transmit(final MimeMessage message, final Address[] recipients) throws MessagingException {
+        try {
+            final Reply go = envelope(message, recipients, pipelining && !chunking);
+            if (chunking) {
+                bdat(message, recipients);
+            } else {
+                data(message, recipients, go);
+            }
+        } catch (final IOException e) {
+            close();
+            throw new MessagingException("Exception reading response", e);
+        }
+    }
+
+    /**
+     * MAIL FROM and RCPT TO for every recipient, as one batch when the relay pipelines.
+     *
+     * @param withData whether DATA ends the batch
+     * @return the reply to DATA, or null if it was not sent
+     */
+    private Reply envelope(final MimeMessage message, final Address[] recipients, final boolean withData)
+            throws IOException, MessagingException {
+        final String from = sender != null ? sender : ((InternetAddress) message.getFrom()[0]).getAddress();
+        final List<String> commands = new ArrayList<>(recipients.length + 1);
+        commands.add("MAIL FROM:<" + from + ">");
+        for (final Address recipient : recipients) {
+            commands.add("RCPT TO:<" + ((InternetAddress) recipient).getAddress() + ">");
+        }
+
+        final Reply[] replies = new Reply[commands.size()];
+        Reply go = null;
+        if (pipelining) {
+            write(String.join("\r\n", commands) + (withData ? "\r\nDATA\r\n" : "\r\n"));
+            for (int i = 0; i < replies.length; i++) {
+                replies[i] = read();
+                if (i == 0 && replies[0].code == 250) {
+                    markMailAccepted();
+                }
+            }
+            if (withData) {
+                go = read();
+            }
+        } else {
+            for (int i = 0; i < replies.length && (i == 0 || replies[0].code == 250); i++) {
+                replies[i] = command(commands.get(i));
+                if (i == 0 && replies[0].code == 250) {
+                    markMailAccepted();
+                }
+            }
+        }
+
+        if (replies[0].code != 250) {
+            abort(go);
+            throw new SMTPSendFailedException(commands.get(0), replies[0].code, replies[0].text,
+                    new SMTPSenderFailedException(new InternetAddress(from), commands.get(0), replies[0].code,
+                            replies[0].text), null, null, null);
+        }
+
+        final List<Address> valid = new ArrayList<>();
+        final List<Address> invalid = new ArrayList<>();
+        MessagingException failures = null;
+        for (int i = 0; i < recipients.length; i++) {
+            final Reply reply = replies[i + 1];
+            if (reply.code == 250 || reply.code == 251) {
+                valid.add(recipients[i]);
+                continue;
+            }
+
+            invalid.add(recipients[i]);
+            final SMTPAddressFailedException failure = new SMTPAddressFailedException(
+                    (InternetAddress) recipients[i], commands.get(i + 1), reply.code, reply.text);
+            if (failures == null) {
+                failures = failure;
+            } else {
+                failures.setNextException(failure);
+            }
+        }
+
+        if (failures != null) {
+            abort(go);
+            throw new SendFailedException("Invalid Addresses", failures, new Address[0],
+                    valid.toArray(new Address[0]), invalid.toArray(new Address[0]));
+        }
+        return go;
+    }
+
+    /**
+     * @param pipelined the reply to DATA sent with the envelope, or null to send it now
+     */
+    private void data(final MimeMessage message, final Address[] recipients, final Reply pipelined)
+            throws IOException, MessagingException {
+        final Reply go = pipelined != null ? pipelined : command("DATA");
+        if (go.code != 354) {
+            reset();
+            throw new SMTPSendFailedException("DATA", go.code, go.text, null, null, recipients, null);
+        }
+        markBodySent();
+
+        final Body body = new Body(false);
+        final SMTPOutputStream stuffed = new SMTPOutputStream(body);
+        message.writeTo(stuffed, IGNORED_HEADERS);
+        stuffed.ensureAtBOL();
+        body.write(END_OF_DATA);
+        body.finish();
+
+        final Reply done = read();
+        if (done.code != 250) {
+            throw new SMTPSendFailedException(".", done.code, done.text, null, null, recipients, null);
+        }
+    }
+
+    private void bdat(final MimeMessage message, final Address[] recipients) throws IOException, MessagingException {
+        markBodySent();
+        final Body body = new Body(true);
+        try {
+            message.writeTo(new CRLFOutputStream(body), IGNORED_HEADERS);
+            body.finish();
+        } catch (final IOException e) {
+            if (body.rejected == null) {
+                throw e;
+            }
+            // without pipelining every chunk but the last is answered as it is sent
+            reset();
+            throw new SMTPSendFailedException("BDAT", body.rejected.code, body.rejected.text, null, null,
+                    recipients, null);
+        }
+
+        // the replies of pipelined chunks are only read once the last one has been written
+        Reply failed = null;
+        for (int i = 0; i < body.unanswered; i++) {
+            final Reply reply = read();
+            if (reply.code != 250 && failed == null) {
+                failed = reply;
+            }
+        }
+        if (failed != null) {
+            reset();
+            throw new SMTPSendFailedException("BDAT", failed.code, failed.text, null, null, recipients, null);
+        }
+    }
+
+    /**
+     * Ends the transaction after a failure, so the connection can be used again.
+     */
+    private void reset() throws IOException {
+        command("RSET");
+    }
+
+    /**
+     * Ends a transaction that failed before its message was sent.
+     *
+     * @param go the reply to a pipelined DATA, or null
+     */
+    private void abort(final Reply go) throws IOException {
+        if (go != null && go.code == 354) {
+            // whatever is written now is the message, only hanging up takes the transaction back
+            channel.close();
+        } else {
+            reset();
+        }
+    }
+
+    @Override
+    boolean isAlive() {
+        try {
+            if (command("NOOP").code == 250) {
+                return true;
+            }
+        } catch (final IOException e) {
+            log.debug("SMTP connection failed its NOOP", e);
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    void close() {
+        try {
+            if (channel.isOpen()) {
+                write("QUIT\r\n");
+            }
+        } catch (final IOException e) {
+            log.debug("Unable to cleanly close SMTP connection", e);
+        } finally {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                log.debug("Unable to close SMTP channel", e);
+            }
+        }
+    }
+
+    private Reply command(final String command) throws IOException {
+        write(command + "\r\n");
+        return read();
+    }
+
+    private void write(final String commands) throws IOException {
+        write(ByteBuffer.wrap(commands.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private void write(final ByteBuffer... buffers) throws IOException {
+        for (final ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+    }
+
+    /**
+     * Reads one reply, all of its lines when it spans several.
+     */
+    private Reply read() throws IOException {
+        final StringBuilder text = new StringBuilder();
+        while (true) {
+            final String l = readLine();
+            if (l.length() < 3) {
+                throw new IOException("Malformed SMTP reply: " + l);
+            }
+
+            final int code;
+            try {
+                code = Integer.parseInt(l.substring(0, 3));
+            } catch (final NumberFormatException e) {
+                throw new IOException("Malformed SMTP reply: " + l, e);
+            }
+            text.append(l.length() > 4 ? l.substring(4) : "");
+            if (l.length() == 3 || l.charAt(3) != '-') {
+                return new Reply(code, text.toString());
+            }
+            text.append('\n');
+        }
+    }
+
+    private String readLine() throws IOException {
+        line.setLength(0);
+        while (true) {
+            while (in.hasRemaining()) {
+                final char c = (char) (in.get() & 0xff);
+                if (c == '\n') {
+                    final int end = line.length() > 0 && line.charAt(line.length() - 1) == '\r'
+                            ? line.length() - 1 : line.length();
+                    return line.substring(0, end);
+                }
+                line.append(c);
+            }
+
+            // timed out reads throw SocketTimeoutException, see the socket's SO_TIMEOUT
+            final int read = input.read(in.array(), 0, in.capacity());
+            if (read < 0) {
+                throw new EOFException("Connection closed by the SMTP server");
+            }
+            in.position(0);
+            in.limit(read);
+        }
+    }
+
+    private static String base64(final String value) {
+        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String localHost() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (final UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    @AllArgsConstructor
+    private static final class Reply {
+
+        private final int code;
+        private final String text;
+
+        @Override
+        public String toString() {
+            return code + " " + text;
+        }
+
+    }
+
+    /**
+     * The message as it is written: buffered in the connection's output buffer, every full buffer
+     * is sent on as one BDAT chunk, or straight to the relay after DATA.
+     */
+    private final class Body extends OutputStream {
+
+        private final boolean bdat;
+        private int unanswered;
+
+        /**
+         * The reply refusing a chunk the relay answered on its own, which stopped the message.
+         */
+        private Reply rejected;
+
+        private Body(final boolean bdat) {
+            this.bdat = bdat;
+            out.clear();
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (!out.hasRemaining()) {
+                send(false);
+            }
+            out.put((byte) b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            int offset = off;
+            int remaining = len;
+            while (remaining > 0) {
+                if (!out.hasRemaining()) {
+                    send(false);
+                }
+                final int n = Math.min(remaining, out.remaining());
+                out.put(b, offset, n);
+                offset += n;
+                remaining -= n;
+            }
+        }
+
+        /**
+         * Sends what is left, as the last chunk.
+         */
+        private void finish() throws IOException {
+            send(true);
+        }
+
+        private void send(final boolean last) throws IOException {
+            out.flip();
+            if (bdat) {
+                PipelinedConnection.this.write(ByteBuffer.wrap(("BDAT " + out.remaining() + (last ? " LAST" : "")
+                        + "\r\n").getBytes(StandardCharsets.US_ASCII)), out);
+                unanswered++;
+                if (!pipelining && !last) {
+                    final Reply reply = read();
+                    unanswered--;
+                    if (reply.code != 250) {
+                        rejected = reply;
+                        throw new IOException("Relay did not accept a BDAT chunk: " + reply);
+                    }
+                }
+            } else {
+                PipelinedConnection.this.write(out);
+            }
+            out.clear();
+        }
+
+    }
+
+}
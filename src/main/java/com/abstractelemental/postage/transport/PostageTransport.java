@@ -0,0 +1,66 @@
+package com.abstractelemental.postage.transport;
+
+import com.abstractelemental.postage.models.Priority;
+import com.abstractelemental.postage.models.SMTPSettings;
+import org.apache.commons.mail.EmailException;
+
+import javax.mail.Address;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * PostageTransport is where the Post Office hands its MIME messages over, {@link SMTPRouter} unless
+ * the settings name another one, see {@link SMTPSettings#getTransport()}. Implementations are called
+ * from every delivery thread at once and must be thread safe.
+ */
+
+public interface PostageTransport extends AutoCloseable {
+
+    /**
+     * Sends the message to every recipient in its headers.
+     *
+     * @param message  to send, {@link MimeMessage#saveChanges()} is called before sending
+     * @param priority of the message
+     * @return the Message-ID of the sent message
+     * @throws RelayThrottledException when the message may only be sent later
+     * @throws EmailException          if the message could not be sent
+     */
+    String send(MimeMessage message, Priority priority) throws EmailException;
+
+    /**
+     * Sends the message as it is, without {@link MimeMessage#saveChanges()}, to the given recipients
+     * only.
+     *
+     * @param recipients the envelope recipients, or null for every recipient of the message
+     */
+    String send(MimeMessage message, Address[] recipients, Priority priority) throws EmailException;
+
+    /**
+     * The session messages are built with.
+     */
+    Session getSession();
+
+    /**
+     * Maximum number of messages sent at once.
+     */
+    int getCapacity();
+
+    default int getActiveCount() {
+        return 0;
+    }
+
+    default int getIdleCount() {
+        return 0;
+    }
+
+    /**
+     * Number of relays messages can be sent to right now.
+     */
+    default int getAvailableCount() {
+        return 1;
+    }
+
+    @Override
+    void close();
+
+}
@@ -0,0 +1,26 @@
+package com.abstractelemental.postage.transport;
+
+import lombok.Getter;
+import org.apache.commons.mail.EmailException;
+
+/**
+ * Thrown by {@link SMTPRouter} when every relay in rotation is at its rate limit. Nothing was sent;
+ * the message should be sent again once the delay has passed.
+ */
+
+@Getter
+public class RelayThrottledException extends EmailException {
+
+    private static final long serialVersionUID = 6402373186019373594L;
+
+    /**
+     * Nanoseconds until a relay has a token for the message.
+     */
+    private final long delay;
+
+    public RelayThrottledException(final long delay) {
+        super("Every SMTP relay is at its rate limit");
+        this.delay = delay;
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.abstractelemental.postage.transport;
+
+import lombok.Getter;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * SMTPConnection is a connected and authenticated SMTP session together with the bookkeeping the
+ * {@link SMTPConnectionPool} needs to decide when it should be validated, recycled or closed. It is
+ * either a JavaMail {@link javax.mail.Transport} or Postage's own {@link PipelinedConnection}.
+ */
+
+@Getter
+abstract class SMTPConnection {
+
+    private volatile int messagesSent;
+    private volatile long lastUsed;
+
+    /**
+     * Whether the relay accepted MAIL FROM during the last send, after which a failure is no longer
+     * about the connection alone.
+     */
+    private volatile boolean mailAccepted;
+
+    /**
+     * Whether the message body was being written during the last send. Without a reply to it the
+     * relay may have accepted the message.
+     */
+    private volatile boolean bodySent;
+
+    SMTPConnection() {
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    void send(final MimeMessage message, final Address[] recipients) throws MessagingException {
+        mailAccepted = false;
+        bodySent = false;
+        try {
+            transmit(message, recipients);
+        } finally {
+            messagesSent++;
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Sends the message, which has been saved already, to the given recipients in one transaction.
+     */
+    protected abstract void transmit(MimeMessage message, Address[] recipients) throws MessagingException;
+
+    protected void markMailAccepted() {
+        mailAccepted = true;
+    }
+
+    protected void markBodySent() {
+        bodySent = true;
+    }
+
+    long idleMillis(final long now) {
+        return now - lastUsed;
+    }
+
+    /**
+     * Performs a NOOP round trip. A connection the server answers with 421, or does not answer at
+     * all, is closed.
+     */
+    abstract boolean isAlive();
+
+    abstract void close();
+
+}
@@ -0,0 +1,412 @@
+package com.abstractelemental.postage.transport;
+
+import com.abstractelemental.postage.metrics.PostageMetrics;
+import com.abstractelemental.postage.metrics.SendPhase;
+import com.abstractelemental.postage.models.Priority;
+import com.abstractelemental.postage.models.Relay;
+import com.abstractelemental.postage.models.SMTPSettings;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.mail.DefaultAuthenticator;
+import org.apache.commons.mail.Email;
+import org.apache.commons.mail.EmailException;
+import org.apache.commons.mail.SimpleEmail;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.util.Iterator;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SMTPConnectionPool keeps a bounded number of connected and authenticated SMTP transports so that
+ * the EHLO / STARTTLS / AUTH handshake is paid once per connection instead of once per message.
+ * <p>
+ * Connections are handed out most-recently-used first so that a quiet pool shrinks back down as
+ * surplus connections pass the idle timeout. A connection that has been idle for a while is
+ * validated with a NOOP before it is used, and a reused connection that fails with a 421 or without
+ * any reply at all before the relay accepted MAIL FROM (the relay dropped it) is discarded and the
+ * message is retried once on a fresh connection. A failure after MAIL FROM is never resent, the relay
+ * may already have the message: it is thrown as a {@link TransactionFailedException}.
+ * <p>
+ * Connections are JavaMail transports, or Postage's own pipelining client when
+ * {@link SMTPSettings#isNativeTransport()} is set.
+ */
+
+@Slf4j
+public class SMTPConnectionPool implements AutoCloseable {
+
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = 2000L;
+
+    @Getter
+    private final Session session;
+
+    private final String hostDescription;
+    private final boolean nativeTransport;
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final String sender;
+    private final int timeout;
+    private final int poolSize;
+    private final int maxMessagesPerConnection;
+    private final long idleTimeout;
+    private final int reservedConnections;
+    private final ReentrantLock permits = new ReentrantLock();
+    private final Condition sharedReleased = permits.newCondition();
+    private final Condition anyReleased = permits.newCondition();
+    private final BlockingDeque<SMTPConnection> idle = new LinkedBlockingDeque<>();
+    private final ScheduledExecutorService evictor;
+    private final PostageMetrics metrics;
+
+    private volatile boolean closed;
+
+    // guarded by permits
+    private int sharedFree;
+    private int reservedFree;
+    private int normalWaiting;
+    private int highWaiting;
+
+    public SMTPConnectionPool(final SMTPSettings settings) throws EmailException {
+        this(settings, new Relay(settings.getHost(), settings.getPort(), 1));
+    }
+
+    /**
+     * A pool of connections to one of the relays of the settings.
+     */
+    public SMTPConnectionPool(final SMTPSettings settings, final Relay relay) throws EmailException {
+        this.session = createSession(settings, relay);
+        this.hostDescription = relay.getHost() + ":" + relay.getPort();
+        this.nativeTransport = usesNativeTransport(settings);
+        if (settings.isNativeTransport() && !nativeTransport) {
+            log.warn("The native SMTP transport does not support TLS, using JavaMail for {}", hostDescription);
+        }
+        final boolean ownCredentials = relay.getUsername() != null;
+        this.host = relay.getHost();
+        this.port = relay.getPort();
+        this.username = ownCredentials ? relay.getUsername() : settings.getUsername();
+        this.password = ownCredentials ? relay.getPassword() : settings.getPassword();
+        this.sender = settings.getBounceEmailAddress();
+        this.timeout = Integer.parseInt(session.getProperty("mail.smtp.timeout"));
+        this.maxMessagesPerConnection = settings.getMaxMessagesPerConnection();
+        this.idleTimeout = settings.getConnectionIdleTimeout();
+        this.poolSize = settings.getConnectionPoolSize() > 0
+                ? settings.getConnectionPoolSize() : settings.getExecutorThreadCount();
+        this.reservedConnections = Math.min(settings.getReservedConnections(), poolSize - 1);
+        this.sharedFree = poolSize - reservedConnections;
+        this.reservedFree = reservedConnections;
+        this.metrics = settings.getMetrics() != null ? settings.getMetrics() : PostageMetrics.NONE;
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "postage-smtp-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long sweep = Math.max(idleTimeout / 2, 1L);
+        evictor.scheduleWithFixedDelay(this::evictIdle, sweep, sweep, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the message over a pooled connection, waiting for one to become available if the pool is
+     * exhausted.
+     *
+     * @param message to send, {@link MimeMessage#saveChanges()} is called before sending
+     * @return the Message-ID of the sent message
+     * @throws EmailException if the message could not be handed to the relay
+     */
+    public String send(final MimeMessage message) throws EmailException {
+        return send(message, Priority.NORMAL);
+    }
+
+    /**
+     * Same as {@link #send(MimeMessage)}, a {@link Priority#HIGH} message may also use one of the
+     * reserved connections.
+     */
+    public String send(final MimeMessage message, final Priority priority) throws EmailException {
+        try {
+            message.saveChanges();
+            return send(message, message.getAllRecipients(), priority);
+        } catch (final MessagingException e) {
+            throw new EmailException("Sending the email to the following server failed : " + hostDescription, e);
+        }
+    }
+
+    /**
+     * Sends the message as it is, without {@link MimeMessage#saveChanges()}, to the given recipients
+     * only, e.g. a message read back from its bytes sent to one chunk of its recipients.
+     *
+     * @param message    to send
+     * @param recipients the envelope recipients, whatever the headers of the message say
+     * @param priority   of the message, a high priority one may also use the reserved connections
+     * @return the Message-ID of the sent message
+     * @throws EmailException if the message could not be handed to the relay
+     */
+    public String send(final MimeMessage message, final Address[] recipients, final Priority priority)
+            throws EmailException {
+        final boolean reservedPermit;
+        try {
+            reservedPermit = acquire(priority);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmailException("Interrupted while waiting for an SMTP connection", e);
+        }
+
+        try {
+            SMTPConnection connection = borrow();
+            final boolean reused = connection.getMessagesSent() > 0;
+            try {
+                send(connection, message, recipients);
+            } catch (final MessagingException e) {
+                connection.close();
+
+                if (!reused || connection.isMailAccepted() || !isDroppedConnection(e)) {
+                    throw failure(connection, e);
+                }
+
+                log.debug("Pooled SMTP connection to {} was dropped by the relay, reconnecting", hostDescription);
+                connection = connect();
+                try {
+                    send(connection, message, recipients);
+                } catch (final MessagingException retryFailure) {
+                    connection.close();
+                    throw failure(connection, retryFailure);
+                }
+            }
+
+            release(connection);
+            return message.getMessageID();
+        } catch (final MessagingException e) {
+            throw new EmailException("Sending the email to the following server failed : " + hostDescription, e);
+        } finally {
+            release(reservedPermit);
+        }
+    }
+
+    /**
+     * A high priority message takes whichever connection is free first, shared or reserved, and jumps
+     * the line of messages waiting for a shared one. Other messages wait for a shared connection in
+     * the order they came.
+     *
+     * @return whether the permit is for a reserved connection
+     */
+    private boolean acquire(final Priority priority) throws InterruptedException {
+        permits.lockInterruptibly();
+        try {
+            if (priority == Priority.HIGH) {
+                highWaiting++;
+                try {
+                    while (sharedFree == 0 && reservedFree == 0) {
+                        anyReleased.await();
+                    }
+                } finally {
+                    highWaiting--;
+                }
+                if (sharedFree > 0) {
+                    sharedFree--;
+                    return false;
+                }
+                reservedFree--;
+                return true;
+            }
+
+            if (sharedFree == 0 || highWaiting > 0 || normalWaiting > 0) {
+                normalWaiting++;
+                try {
+                    do {
+                        sharedReleased.await();
+                    } while (sharedFree == 0 || highWaiting > 0);
+                } finally {
+                    normalWaiting--;
+                }
+            }
+            sharedFree--;
+            return false;
+        } finally {
+            // whatever is left, or was given up by an interrupted waiter, goes to the next in line
+            signal();
+            permits.unlock();
+        }
+    }
+
+    private void release(final boolean reservedPermit) {
+        permits.lock();
+        try {
+            if (reservedPermit) {
+                reservedFree++;
+            } else {
+                sharedFree++;
+            }
+            signal();
+        } finally {
+            permits.unlock();
+        }
+    }
+
+    /**
+     * Wakes the next message in line for a free connection, a high priority one first. Called with the
+     * lock held.
+     */
+    private void signal() {
+        if (highWaiting > 0 && (sharedFree > 0 || reservedFree > 0)) {
+            anyReleased.signal();
+        } else if (sharedFree > 0 && normalWaiting > 0) {
+            sharedReleased.signal();
+        }
+    }
+
+    /**
+     * Maximum number of messages this pool sends at once.
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getActiveCount() {
+        permits.lock();
+        try {
+            return poolSize - sharedFree - reservedFree;
+        } finally {
+            permits.unlock();
+        }
+    }
+
+    private SMTPConnection borrow() throws MessagingException {
+        final long now = System.currentTimeMillis();
+        SMTPConnection connection;
+
+        while ((connection = idle.pollFirst()) != null) {
+            if (connection.idleMillis(now) < VALIDATE_AFTER_IDLE_MILLIS || connection.isAlive()) {
+                return connection;
+            }
+            log.debug("Discarding stale SMTP connection to {}", hostDescription);
+            connection.close();
+        }
+
+        return connect();
+    }
+
+    /**
+     * A failure after the relay accepted MAIL FROM is told apart, whoever gets it must not send the
+     * message again as if nothing had happened.
+     */
+    private EmailException failure(final SMTPConnection connection, final MessagingException e) {
+        if (!connection.isMailAccepted()) {
+            return new EmailException("Sending the email to the following server failed : " + hostDescription, e);
+        }
+        return new TransactionFailedException("Sending the email to the following server failed : "
+                + hostDescription, e, connection.isBodySent() && SMTPReply.codeOf(e) == SMTPReply.UNKNOWN);
+    }
+
+    private SMTPConnection connect() throws MessagingException {
+        final long start = System.nanoTime();
+        try {
+            if (nativeTransport) {
+                return PipelinedConnection.open(host, port, username, password, sender, timeout);
+            }
+            return new JavaMailConnection(session);
+        } finally {
+            metrics.timed(SendPhase.CONNECT, System.nanoTime() - start);
+        }
+    }
+
+    private void send(final SMTPConnection connection, final MimeMessage message, final Address[] recipients)
+            throws MessagingException {
+        final long start = System.nanoTime();
+        try {
+            connection.send(message, recipients);
+        } finally {
+            metrics.timed(SendPhase.DATA, System.nanoTime() - start);
+        }
+    }
+
+    private void release(final SMTPConnection connection) {
+        if (closed || connection.getMessagesSent() >= maxMessagesPerConnection) {
+            connection.close();
+        } else {
+            idle.offerFirst(connection);
+        }
+    }
+
+    private void evictIdle() {
+        final long now = System.currentTimeMillis();
+        final Iterator<SMTPConnection> it = idle.descendingIterator();
+
+        while (it.hasNext()) {
+            final SMTPConnection connection = it.next();
+            if (connection.idleMillis(now) >= idleTimeout && idle.removeLastOccurrence(connection)) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * A 421 or a failure without any reply code, before MAIL FROM was accepted, means the relay (or
+     * something in between) closed the connection before the transaction started, so it is safe to
+     * resend.
+     */
+    private static boolean isDroppedConnection(final MessagingException e) {
+        final int code = SMTPReply.codeOf(e);
+        return code == SMTPReply.UNKNOWN || code == SMTPReply.SERVICE_NOT_AVAILABLE;
+    }
+
+    /**
+     * Whether the pools of these settings connect with Postage's own client. It does not support TLS,
+     * so JavaMail is used instead when the settings require it.
+     */
+    public static boolean usesNativeTransport(final SMTPSettings settings) {
+        return settings.isNativeTransport() && !settings.isSslOnConnect() && !settings.isStartTLSRequired();
+    }
+
+    /**
+     * Builds the JavaMail session the same way Commons Email would for a single message, so pooled
+     * and un-pooled sends behave identically.
+     */
+    public static Session createSession(final SMTPSettings settings) throws EmailException {
+        return createSession(settings, new Relay(settings.getHost(), settings.getPort(), 1));
+    }
+
+    /**
+     * Same as {@link #createSession(SMTPSettings)}, for one of the relays of the settings.
+     */
+    public static Session createSession(final SMTPSettings settings, final Relay relay) throws EmailException {
+        final boolean ownCredentials = relay.getUsername() != null;
+        final Email e = new SimpleEmail();
+        e.setHostName(relay.getHost());
+        e.setSmtpPort(relay.getPort());
+        e.setAuthenticator(new DefaultAuthenticator(ownCredentials ? relay.getUsername() : settings.getUsername(),
+                ownCredentials ? relay.getPassword() : settings.getPassword()));
+        e.setBounceAddress(settings.getBounceEmailAddress());
+        e.setStartTLSRequired(settings.isStartTLSRequired());
+        e.setSSLCheckServerIdentity(settings.isSslCheckServerIdentity());
+        e.setSSLOnConnect(settings.isSslOnConnect());
+        return e.getMailSession();
+    }
+
+    /**
+     * Closes every idle connection. Connections currently in use are closed as they are returned, and
+     * any send after this point uses a one-off connection.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+
+        SMTPConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            connection.close();
+        }
+    }
+
+}
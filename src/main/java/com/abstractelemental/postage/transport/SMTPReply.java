@@ -0,0 +1,74 @@
+package com.abstractelemental.postage.transport;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+import javax.mail.MessagingException;
+
+/**
+ * SMTPReply digs the SMTP reply code out of the exceptions JavaMail and Commons Email throw.
+ */
+
+public final class SMTPReply {
+
+    /**
+     * Returned when no SMTP reply code could be found, e.g. the connection was refused or timed out.
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * Requested mail action okay, completed. The only reply JavaMail accepts at the end of DATA.
+     */
+    public static final int OK = 250;
+
+    /**
+     * Service not available, closing transmission channel.
+     */
+    public static final int SERVICE_NOT_AVAILABLE = 421;
+
+    private SMTPReply() {
+    }
+
+    /**
+     * Walks the cause chain (including {@link MessagingException#getNextException()}) of the
+     * throwable and returns the first SMTP reply code found.
+     */
+    public static int codeOf(final Throwable throwable) {
+        Throwable t = throwable;
+        int depth = 0;
+
+        while (t != null && depth++ < 16) {
+            if (t instanceof SMTPSendFailedException) {
+                return ((SMTPSendFailedException) t).getReturnCode();
+            } else if (t instanceof SMTPAddressFailedException) {
+                return ((SMTPAddressFailedException) t).getReturnCode();
+            } else if (t instanceof SMTPSenderFailedException) {
+                return ((SMTPSenderFailedException) t).getReturnCode();
+            }
+
+            if (t instanceof MessagingException && ((MessagingException) t).getNextException() != null) {
+                t = ((MessagingException) t).getNextException();
+            } else {
+                t = t.getCause();
+            }
+        }
+
+        return UNKNOWN;
+    }
+
+    /**
+     * Transient negative completion (4xx), the command may succeed if retried.
+     */
+    public static boolean isTransient(final int code) {
+        return code >= 400 && code < 500;
+    }
+
+    /**
+     * Permanent negative completion (5xx), retrying the same command will not help.
+     */
+    public static boolean isPermanent(final int code) {
+        return code >= 500 && code < 600;
+    }
+
+}
@@ -0,0 +1,281 @@
+package com.abstractelemental.postage.transport;
+
+import com.abstractelemental.postage.models.Priority;
+import com.abstractelemental.postage.models.Relay;
+import com.abstractelemental.postage.models.SMTPSettings;
+import lombok.extern.slf4j.Slf4j;
+import net.jodah.failsafe.CircuitBreaker;
+import org.apache.commons.mail.EmailException;
+
+import javax.mail.Address;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SMTPRouter balances messages between the SMTP relays of the settings, each with its own
+ * {@link SMTPConnectionPool}.
+ * <p>
+ * Every message goes to the relay with the lowest cost, its in-flight count (plus the message
+ * itself) times its recent latency, divided by its weight. A relay that has not sent anything yet
+ * counts as fast, so every relay is tried early on. Each relay has a circuit breaker that takes it
+ * out of rotation after a run of transient failures and puts it back on trial once the recovery
+ * delay has passed.
+ * <p>
+ * A message that fails on one relay with a transient failure (no reply, or a 4xx) is handed to the
+ * next cheapest relay right away, as part of the same delivery attempt, so failing over does not
+ * cost the message a retry and its backoff. A permanent (5xx) failure is about the message, not the
+ * relay, and is not failed over. Neither is a {@link TransactionFailedException}, a failure after
+ * the relay accepted MAIL FROM: it may already have the message, and a second relay would deliver it
+ * twice. Only failures to connect and failures before MAIL FROM are failed over.
+ * <p>
+ * A relay with a {@link Relay#getRateLimit()} only takes a message when its {@link TokenBucket} has
+ * a token. When every relay in rotation is at its limit nothing is sent and the caller is told how
+ * long to wait. A relay answering with one of the throttling reply codes has its rate halved.
+ */
+
+@Slf4j
+public class SMTPRouter implements PostageTransport {
+
+    private static final double LATENCY_SMOOTHING = 0.2;
+    private static final double MIN_LATENCY_MILLIS = 1.0;
+
+    private final List<Route> routes = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final Set<Integer> throttleReplyCodes;
+
+    public SMTPRouter(final SMTPSettings settings) throws EmailException {
+        throttleReplyCodes = settings.getThrottleReplyCodes();
+        final List<Relay> relays = settings.getRelays() == null || settings.getRelays().isEmpty()
+                ? Collections.singletonList(new Relay(settings.getHost(), settings.getPort(), 1))
+                : settings.getRelays();
+
+        for (final Relay relay : relays) {
+            routes.add(new Route(relay, new SMTPConnectionPool(settings, relay), new CircuitBreaker()
+                    .failOn(SMTPRouter::isRelayFailure)
+                    .withFailureThreshold(settings.getRelayFailureThreshold())
+                    .withDelay(settings.getRelayRecoveryDelay(), TimeUnit.MILLISECONDS),
+                    relay.getRateLimit() > 0 ? new TokenBucket(relay.getRateLimit(), settings.getRateLimitBurst())
+                            : null));
+        }
+    }
+
+    /**
+     * Sends the message over the cheapest relay in rotation, failing over to the others.
+     *
+     * @param message  to send
+     * @param priority of the message, a high priority one may use reserved connections
+     * @return the Message-ID of the sent message
+     * @throws RelayThrottledException when every relay in rotation is at its rate limit
+     * @throws EmailException          the failure of the last relay tried, or when no relay is in rotation
+     */
+    @Override
+    public String send(final MimeMessage message, final Priority priority) throws EmailException {
+        return send(message, null, priority);
+    }
+
+    /**
+     * Same as {@link #send(MimeMessage, Priority)}, but the message is sent as it is to the given
+     * recipients only, see {@link SMTPConnectionPool#send(MimeMessage, Address[], Priority)}.
+     *
+     * @param recipients the envelope recipients, or null for every recipient of the message
+     */
+    @Override
+    public String send(final MimeMessage message, final Address[] recipients, final Priority priority)
+            throws EmailException {
+        final boolean[] tried = new boolean[routes.size()];
+        EmailException failure = null;
+
+        Route route;
+        while ((route = choose(tried)) != null) {
+            try {
+                return route.send(message, recipients, priority);
+            } catch (final EmailException e) {
+                failure = e;
+                if (throttleReplyCodes.contains(SMTPReply.codeOf(e))) {
+                    route.throttled();
+                }
+                if (!isRelayFailure(e) || e instanceof TransactionFailedException) {
+                    throw e;
+                }
+                log.warn("SMTP relay {}:{} failed (reply code {}), trying the next one", route.relay.getHost(),
+                        route.relay.getPort(), SMTPReply.codeOf(e));
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        final long delay = throttledFor(tried);
+        throw delay > 0 ? new RelayThrottledException(delay) : new EmailException("No SMTP relay is in rotation");
+    }
+
+    /**
+     * The session messages are built with, that of the first relay, whichever relay they are then
+     * sent to. Every relay shares the same bounce address and encoding settings, but session
+     * properties that depend on the relay (its host, port, or TLS settings) never apply to how a
+     * message is built, only to how it is sent.
+     */
+    @Override
+    public Session getSession() {
+        return routes.get(0).pool.getSession();
+    }
+
+    /**
+     * Maximum number of messages sent at once, over all relays.
+     */
+    @Override
+    public int getCapacity() {
+        return routes.stream().mapToInt(r -> r.pool.getPoolSize()).sum();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return routes.stream().mapToInt(r -> r.pool.getActiveCount()).sum();
+    }
+
+    @Override
+    public int getIdleCount() {
+        return routes.stream().mapToInt(r -> r.pool.getIdleCount()).sum();
+    }
+
+    /**
+     * Number of relays not taken out of rotation by their circuit breaker.
+     */
+    @Override
+    public int getAvailableCount() {
+        return (int) routes.stream().filter(r -> !r.breaker.isOpen()).count();
+    }
+
+    /**
+     * The cheapest relay not tried yet that has a token for the message, starting the scan at a
+     * rotating offset so that relays of equal cost take turns.
+     */
+    private Route choose(final boolean[] tried) {
+        final int size = routes.size();
+
+        while (true) {
+            final int offset = Math.floorMod(next.getAndIncrement(), size);
+            int best = -1;
+            double bestCost = Double.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                final int index = (offset + i) % size;
+                final Route route = routes.get(index);
+                if (tried[index] || !route.breaker.allowsExecution() || route.waitTime() > 0) {
+                    continue;
+                }
+
+                final double cost = route.cost();
+                if (cost < bestCost) {
+                    best = index;
+                    bestCost = cost;
+                }
+            }
+
+            if (best < 0) {
+                return null;
+            }
+
+            // another thread may have taken the last token since, look again
+            final Route route = routes.get(best);
+            if (route.bucket == null || route.bucket.tryAcquire() == 0) {
+                tried[best] = true;
+                return route;
+            }
+        }
+    }
+
+    /**
+     * Nanoseconds until one of the relays in rotation not tried yet has a token, 0 when none of them
+     * is rate limited.
+     */
+    private long throttledFor(final boolean[] tried) {
+        long delay = Long.MAX_VALUE;
+        for (int i = 0; i < routes.size(); i++) {
+            final Route route = routes.get(i);
+            if (!tried[i] && !route.breaker.isOpen()) {
+                delay = Math.min(delay, route.waitTime());
+            }
+        }
+        return delay == Long.MAX_VALUE ? 0L : delay;
+    }
+
+    /**
+     * Transient failures say something about the relay, permanent ones about the message.
+     */
+    private static boolean isRelayFailure(final Throwable throwable) {
+        return !SMTPReply.isPermanent(SMTPReply.codeOf(throwable));
+    }
+
+    @Override
+    public void close() {
+        routes.forEach(r -> r.pool.close());
+    }
+
+    /**
+     * A relay with its connections and its health.
+     */
+    private static final class Route {
+
+        private final Relay relay;
+        private final SMTPConnectionPool pool;
+        private final CircuitBreaker breaker;
+        private final TokenBucket bucket;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        // milliseconds per message, smoothed. Written by whichever thread finished last, a lost update is harmless
+        private volatile double latency;
+
+        private Route(final Relay relay, final SMTPConnectionPool pool, final CircuitBreaker breaker,
+                      final TokenBucket bucket) {
+            this.relay = relay;
+            this.pool = pool;
+            this.breaker = breaker;
+            this.bucket = bucket;
+        }
+
+        private long waitTime() {
+            return bucket != null ? bucket.waitTime() : 0L;
+        }
+
+        private void throttled() {
+            if (bucket != null) {
+                bucket.throttled();
+            }
+        }
+
+        private double cost() {
+            return (inFlight.get() + 1) * Math.max(latency, MIN_LATENCY_MILLIS) / relay.getWeight();
+        }
+
+        private String send(final MimeMessage message, final Address[] recipients, final Priority priority)
+                throws EmailException {
+            final long start = System.nanoTime();
+            inFlight.incrementAndGet();
+            try {
+                final String messageId = recipients != null ? pool.send(message, recipients, priority)
+                        : pool.send(message, priority);
+                breaker.recordSuccess();
+                if (bucket != null) {
+                    bucket.delivered();
+                }
+                return messageId;
+            } catch (final EmailException | RuntimeException e) {
+                breaker.recordFailure(e);
+                throw e;
+            } finally {
+                inFlight.decrementAndGet();
+                final double elapsed = (System.nanoTime() - start) / 1_000_000.0;
+                latency = latency == 0 ? elapsed : latency + LATENCY_SMOOTHING * (elapsed - latency);
+            }
+        }
+
+    }
+
+}
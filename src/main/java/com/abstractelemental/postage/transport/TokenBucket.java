@@ -0,0 +1,115 @@
+package com.abstractelemental.postage.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TokenBucket limits how many messages per second go somewhere (a relay, a recipient domain...),
+ * allowing bursts of up to {@code burst} messages. It is lock-free: the whole bucket is the time at
+ * which the next token is free, moved forward with a compare-and-set for every message.
+ * <p>
+ * The rate adapts to the relay: every time it answers with a throttling reply the rate is halved,
+ * down to a sixteenth of the configured rate, and every message delivered afterwards wins back a
+ * twentieth of the configured rate.
+ */
+
+public class TokenBucket {
+
+    private static final double MIN_RATE_FRACTION = 1.0 / 16;
+    private static final double RECOVERY_FRACTION = 1.0 / 20;
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    private final double rate;
+    private final int burst;
+    private final AtomicLong nextFree;
+
+    private volatile double currentRate;
+
+    /**
+     * @param rate  messages per second
+     * @param burst messages that may go at once after a quiet period
+     */
+    public TokenBucket(final double rate, final int burst) {
+        this.rate = rate;
+        this.burst = Math.max(burst, 1);
+        this.currentRate = rate;
+        this.nextFree = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token, whether it is available now or later.
+     *
+     * @return nanoseconds to wait before the token may be used, 0 when it may be used right away
+     */
+    public long reserve() {
+        final long interval = interval();
+        final long now = System.nanoTime();
+
+        while (true) {
+            final long free = nextFree.get();
+            final long next = Math.max(free, now) + interval;
+            if (nextFree.compareAndSet(free, next)) {
+                return Math.max(0L, next - now - burst * interval);
+            }
+        }
+    }
+
+    /**
+     * Takes a token only if it is available right away.
+     *
+     * @return 0 when a token was taken, otherwise the nanoseconds until one is available
+     */
+    public long tryAcquire() {
+        final long interval = interval();
+        final long now = System.nanoTime();
+
+        while (true) {
+            final long free = nextFree.get();
+            final long next = Math.max(free, now) + interval;
+            final long wait = next - now - burst * interval;
+            if (wait > 0) {
+                return wait;
+            }
+            if (nextFree.compareAndSet(free, next)) {
+                return 0L;
+            }
+        }
+    }
+
+    /**
+     * Nanoseconds until a token is available, without taking it.
+     */
+    public long waitTime() {
+        final long interval = interval();
+        final long now = System.nanoTime();
+        return Math.max(0L, Math.max(nextFree.get(), now) + interval - now - burst * interval);
+    }
+
+    /**
+     * The relay pushed back, halve the rate.
+     */
+    public void throttled() {
+        currentRate = Math.max(rate * MIN_RATE_FRACTION, currentRate / 2);
+    }
+
+    /**
+     * A message went through, win back some of the rate lost to throttling.
+     */
+    public void delivered() {
+        final double current = currentRate;
+        if (current < rate) {
+            currentRate = Math.min(rate, current + rate * RECOVERY_FRACTION);
+        }
+    }
+
+    /**
+     * Messages per second currently allowed.
+     */
+    public double getRate() {
+        return currentRate;
+    }
+
+    private long interval() {
+        return (long) (NANOS_PER_SECOND / currentRate);
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.abstractelemental.postage.transport;
+
+import lombok.Getter;
+import org.apache.commons.mail.EmailException;
+
+/**
+ * Thrown when a send failed after the relay had accepted MAIL FROM. The message is neither resent
+ * on a fresh connection nor failed over to another relay, which could deliver it twice.
+ */
+
+@Getter
+public class TransactionFailedException extends EmailException {
+
+    private static final long serialVersionUID = -2718164385117930127L;
+
+    /**
+     * Whether the message body had been sent and the relay never replied to it, in which case it may
+     * well have accepted the message.
+     */
+    private final boolean uncertain;
+
+    public TransactionFailedException(final String message, final Throwable cause, final boolean uncertain) {
+        super(message, cause);
+        this.uncertain = uncertain;
+    }
+
+}
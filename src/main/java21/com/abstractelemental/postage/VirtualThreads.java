@@ -0,0 +1,24 @@
+package com.abstractelemental.postage;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * VirtualThreads creates the delivery threads when
+ * {@link com.abstractelemental.postage.models.SMTPSettings#isVirtualThreads()} is set. This is the
+ * Java 21 version of the class, loaded from the multi-release jar.
+ */
+
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return true;
+    }
+
+    static ThreadFactory factory(final String name) {
+        return Thread.ofVirtual().name("postage-" + name + "-", 1).factory();
+    }
+
+}
@@ -1,55 +1,104 @@
 package com.abstractelemental.postage;
 
+import com.abstractelemental.postage.metrics.MicrometerPostageMetrics;
 import com.abstractelemental.postage.models.*;
+import com.abstractelemental.postage.outbox.Outbox;
+import com.abstractelemental.postage.transport.CaptureTransport;
+import com.abstractelemental.postage.transport.TokenBucket;
+import com.abstractelemental.postage.transport.TransactionFailedException;
 import com.icegreen.greenmail.junit.GreenMailRule;
 import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.GreenMailUtil;
 import com.icegreen.greenmail.util.ServerSetup;
 import com.icegreen.greenmail.util.ServerSetupTest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.mail.EmailException;
 import org.junit.AfterClass;
-import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import javax.mail.Address;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @Slf4j
 public class GeneralTest {
 
-    private static SMTPSettings SETTINGS;
-
     private static Boolean success;
     private static Boolean failure;
 
     @Rule
     public final GreenMailRule greenMail = new GreenMailRule(ServerSetupTest.SMTP);
 
-    @BeforeClass
-    public static void setup() {
-        SETTINGS = new SMTPSettings();
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Settings for the GreenMail relay, a new instance for every test to change as it likes.
+     */
+    private static SMTPSettings settings() {
+        final SMTPSettings settings = new SMTPSettings();
 
-        SETTINGS.setHost("localhost");
-        SETTINGS.setPort(3025);
-        SETTINGS.setUsername("test");
-        SETTINGS.setPassword("potato");
+        settings.setHost("localhost");
+        settings.setPort(3025);
+        settings.setUsername("test");
+        settings.setPassword("potato");
 
-        SETTINGS.setBounceEmailAddress("bounce@abstractelemental.com");
-        SETTINGS.setExecutorThreadCount(5);
-        SETTINGS.setRetryCount(5);
-        SETTINGS.setRetryOnFailure(Boolean.TRUE);
-        SETTINGS.setSslCheckServerIdentity(Boolean.FALSE);
-        SETTINGS.setSslOnConnect(Boolean.FALSE);
-        SETTINGS.setStartTLSRequired(Boolean.FALSE);
+        settings.setBounceEmailAddress("bounce@abstractelemental.com");
+        settings.setExecutorThreadCount(5);
+        settings.setRenderThreadCount(2);
+        settings.setMaxMessagesPerConnection(3);
+        settings.setRetryCount(5);
+        settings.setRetryOnFailure(Boolean.TRUE);
+        settings.setSslCheckServerIdentity(Boolean.FALSE);
+        settings.setSslOnConnect(Boolean.FALSE);
+        settings.setStartTLSRequired(Boolean.FALSE);
 
-        SETTINGS.setClassForTemplateLoading(PostOffice.class);
+        settings.setClassForTemplateLoading(PostOffice.class);
+        return settings;
     }
 
     @Test
-    @SneakyThrows(InterruptedException.class)
     public void testEmail() {
         final Consumer<PostageReceipt> successCallback = pr -> {
             log.info("Email sent!");
@@ -69,7 +118,7 @@ public class GeneralTest {
             failure = Boolean.TRUE;
         };
 
-        try (PostOffice postOffice = new PostOffice(SETTINGS, successCallback, failureCallback)) {
+        try (PostOffice postOffice = new PostOffice(settings(), successCallback, failureCallback)) {
             final Email email = Email.builder()
                     .subject("Hello World")
                     .plainBody("I wish I Wish I was a fish")
@@ -86,13 +135,880 @@ public class GeneralTest {
 
             postOffice.send(email);
 
-            Thread.sleep(1000L);
+            assertTrue(postOffice.close(Duration.ofSeconds(5)).isDrained());
 
             assert success.equals(Boolean.TRUE);
             assert failure.equals(Boolean.FALSE);
         }
     }
 
+    @Test
+    public void testPooledDelivery() {
+        try (PostOffice postOffice = new PostOffice(settings())) {
+            for (int i = 0; i < 10; i++) {
+                postOffice.send(Email.builder()
+                        .subject("Pooled #" + i)
+                        .plainBody("Same connection, different fish")
+                        .recipient(new Contact("jim@jimboson.com", "Jim Jimboson"))
+                        .from(new Contact("postage-test@abstractelemetal.com"))
+                        .build());
+            }
+
+            assertTrue(greenMail.waitForIncomingEmail(5000L, 10));
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() {
+        final SMTPSettings virtual = settings();
+        virtual.setConnectionPoolSize(3);
+        virtual.setNativeTransport(Boolean.TRUE);
+        // falls back to platform threads before Java 21, see VirtualThreadsIT for the Java 21 path
+        virtual.setVirtualThreads(Boolean.TRUE);
+
+        try (PostOffice postOffice = new PostOffice(virtual)) {
+            for (int i = 0; i < 10; i++) {
+                postOffice.send(Email.builder()
+                        .subject("Virtual #" + i)
+                        .plainBody("Lighter than a fish")
+                        .recipient(new Contact("jim@jimboson.com", "Jim Jimboson"))
+                        .from(new Contact("postage-test@abstractelemetal.com"))
+                        .build());
+            }
+
+            assertTrue(greenMail.waitForIncomingEmail(5000L, 10));
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testNativeTransport() {
+        final SMTPSettings pipelined = settings();
+        pipelined.setConnectionPoolSize(2);
+        pipelined.setNativeTransport(Boolean.TRUE);
+
+        try (PostOffice postOffice = new PostOffice(pipelined)) {
+            for (int i = 0; i < 5; i++) {
+                postOffice.send(Email.builder()
+                        .subject("Native #" + i)
+                        .plainBody(".starts with a dot\n.\nand a lone one")
+                        .recipient(new Contact("jim@jimboson.com", "Jim Jimboson"))
+                        .carbonCopy(new Contact("jane@jimboson.com"))
+                        .from(new Contact("postage-test@abstractelemetal.com"))
+                        .build());
+            }
+
+            // GreenMail offers neither PIPELINING nor CHUNKING, see PipelinedConnectionTest for those
+            assertTrue(received(10));
+            assertEquals(".starts with a dot\r\n.\r\nand a lone one",
+                    GreenMailUtil.getBody(greenMail.getReceivedMessages()[0]).trim());
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testSendAll() {
+        final ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
+
+        try (PostOffice postOffice = new PostOffice(settings(), null, null, callbackExecutor)) {
+            final List<Email> emails = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                emails.add(Email.builder()
+                        .subject("Batch #" + i)
+                        .plainBody("One fish, two fish")
+                        .recipient(new Contact("jim@jimboson.com", "Jim Jimboson"))
+                        .from(new Contact("postage-test@abstractelemetal.com"))
+                        .build());
+            }
+
+            final List<PostageReceipt> receipts = postOffice.sendAll(emails).get(5, TimeUnit.SECONDS);
+
+            assertEquals(5, receipts.size());
+            receipts.forEach(r -> assertTrue(r.getSuccess()));
+            assertEquals("Batch #3", receipts.get(3).getEmail().getSubject());
+        } finally {
+            callbackExecutor.shutdown();
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testSendBulk() {
+        final SMTPSettings windowed = settings();
+        windowed.setBulkWindow(4);
+        try (PostOffice postOffice = new PostOffice(windowed)) {
+            final Email envelope = Email.builder()
+                    .subject("Newsletter")
+                    .plainBody("So long, and thanks for all the fish")
+                    .from(new Contact("postage-test@abstractelemetal.com"))
+                    .metadatum("campaign", "fish")
+                    .build();
+
+            // a row without metadata of its own gets the envelope's
+            final BulkSend bulk = postOffice.sendBulk("test_template.ftl", envelope, IntStream.range(0, 12).mapToObj(
+                    i -> new BulkRecipient(new Contact("reader" + i + "@jimboson.com"), new LazyEmailModel("Reader #" + i),
+                            i % 2 == 0 ? null : Collections.singletonMap("row", i))));
+            final BulkReceipt receipt = bulk.getReceipt().get(10, TimeUnit.SECONDS);
+
+            assertNull(receipt.getThrowable());
+            assertEquals(12, receipt.getSubmitted());
+            assertEquals(12, receipt.getDelivered());
+            assertTrue(receipt.getFailedRecipients().isEmpty());
+            assertEquals(0, bulk.getInFlight());
+            assertTrue(greenMail.waitForIncomingEmail(5000L, 12));
+            assertTrue(GreenMailUtil.getBody(greenMail.getReceivedMessagesForDomain("reader7@jimboson.com")[0])
+                    .contains("Reader #7"));
+
+            postOffice.close(Duration.ofSeconds(5));
+            final BulkReceipt closed = postOffice.sendBulk("test_template.ftl", envelope, Stream.of(
+                    new BulkRecipient(new Contact("late@jimboson.com"), new LazyEmailModel("Late")))).getReceipt()
+                    .get(5, TimeUnit.SECONDS);
+            assertTrue(closed.getThrowable() instanceof RejectedExecutionException);
+            assertEquals(0, closed.getSubmitted());
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testInMemoryAttachments() {
+        final byte[] gif = Files.readAllBytes(Paths.get("src/test/resources/patrick.gif"));
+        final ByteBuffer direct = ByteBuffer.allocateDirect(gif.length);
+        direct.put(gif).flip();
+
+        try (PostOffice postOffice = new PostOffice(settings())) {
+            final PostageReceipt receipt = postOffice.sendAsync(Email.builder()
+                    .subject("No temp files")
+                    .plainBody("Three fish")
+                    .recipient(new Contact("jim@jimboson.com", "Jim Jimboson"))
+                    .from(new Contact("postage-test@abstractelemetal.com"))
+                    .attachment(Attachment.fromBytes("bytes.gif", "From bytes", gif))
+                    .attachment(Attachment.fromByteBuffer("buffer.gif", "From a direct buffer", direct))
+                    .attachment(Attachment.fromStream("stream.txt", "From a stream",
+                            () -> new ByteArrayInputStream("streamed fish".getBytes(StandardCharsets.UTF_8))))
+                    .build()).get(5, TimeUnit.SECONDS);
+
+            assertTrue(receipt.getSuccess());
+            assertTrue(greenMail.waitForIncomingEmail(5000L, 1));
+            final MimeMultipart parts = (MimeMultipart) greenMail.getReceivedMessages()[0].getContent();
+            assertEquals(4, parts.getCount());
+            assertEquals("bytes.gif", parts.getBodyPart(1).getFileName());
+            assertArrayEquals(gif, readAll(parts.getBodyPart(1).getInputStream()));
+            assertArrayEquals(gif, readAll(parts.getBodyPart(2).getInputStream()));
+            assertEquals("streamed fish", new String(readAll(parts.getBodyPart(3).getInputStream()), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testStreamedHtml() {
+        try (PostOffice postOffice = new PostOffice(settings())) {
+            assertTrue(postOffice.sendAsync(Email.builder()
+                    .subject("Grüße")
+                    .freemarkerTemplateFilename("test_template.ftl")
+                    .freemarkerView(new LazyEmailModel("Jürgen"))
+                    .recipient(new Contact("jim@jimboson.com", "Jim Jimboson"))
+                    .from(new Contact("postage-test@abstractelemetal.com"))
+                    .attachment(Attachment.fromPath("patrick.gif", "Fancy gif!", "src/test/resources/patrick.gif"))
+                    .build()).get(5, TimeUnit.SECONDS).getSuccess());
+
+            assertTrue(greenMail.waitForIncomingEmail(5000L, 1));
+            final MimeMessage message = greenMail.getReceivedMessages()[0];
+            final MimeMultipart parts = (MimeMultipart) message.getContent();
+            assertEquals("Grüße", message.getSubject());
+            assertTrue(((String) parts.getBodyPart(0).getContent()).contains("Hello Jürgen"));
+            assertEquals("patrick.gif", parts.getBodyPart(1).getFileName());
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testChunkedEnvelope() {
+        final SMTPSettings chunked = settings();
+        chunked.setExecutorThreadCount(3);
+        chunked.setConnectionPoolSize(3);
+        chunked.setMaxRecipientsPerMessage(3);
+
+        final Email email = Email.builder()
+                .subject("Big envelope")
+                .plainBody("So long, and thanks for all the fish")
+                .recipient(new Contact("jim@jimboson.com"))
+                .recipient(new Contact("jane@jimboson.com"))
+                .recipient(new Contact("joe@jimboson.com"))
+                .recipient(new Contact("jill@jimboson.com"))
+                .carbonCopy(new Contact("fred@fakerson.xyz"))
+                .blindCarbonCopy(new Contact("potato@salad.com"))
+                .blindCarbonCopy(new Contact("tomato@salad.com"))
+                .from(new Contact("postage-test@abstractelemetal.com"))
+                .build();
+
+        // a domain stays in one chunk unless it cannot fit in one
+        final List<List<Contact>> chunks = Consignment.chunks(email, 3);
+        assertEquals(3, chunks.size());
+        assertEquals(Arrays.asList(new Contact("fred@fakerson.xyz"), new Contact("jim@jimboson.com"),
+                new Contact("jane@jimboson.com")), chunks.get(0));
+        assertEquals(Arrays.asList(new Contact("joe@jimboson.com"), new Contact("jill@jimboson.com")), chunks.get(1));
+        assertEquals(Arrays.asList(new Contact("potato@salad.com"), new Contact("tomato@salad.com")), chunks.get(2));
+
+        try (PostOffice postOffice = new PostOffice(chunked)) {
+            final PostageReceipt receipt = postOffice.sendAsync(email).get(5, TimeUnit.SECONDS);
+            assertTrue(receipt.getSuccess());
+            assertTrue(receipt.getFailedRecipients().isEmpty());
+
+            assertTrue(received(7));
+            for (final MimeMessage message : greenMail.getReceivedMessages()) {
+                assertEquals(receipt.getMessageId(), message.getMessageID());
+                assertNull(message.getHeader("Bcc"));
+            }
+        }
+
+        chunked.setPort(3026);
+        chunked.setRetryOnFailure(Boolean.FALSE);
+        try (PostOffice postOffice = new PostOffice(chunked)) {
+            final PostageReceipt receipt = postOffice.sendAsync(email).get(5, TimeUnit.SECONDS);
+            assertFalse(receipt.getSuccess());
+            assertNotNull(receipt.getThrowable());
+            assertEquals(7, receipt.getFailedRecipients().size());
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testRetriesExhausted() {
+        final SMTPSettings unreachable = settings();
+        unreachable.setPort(3026);
+        unreachable.setRetryCount(3);
+        unreachable.setRetryDelay(10L);
+        unreachable.setRetryMaxDelay(40L);
+
+        try (PostOffice postOffice = new PostOffice(unreachable)) {
+            final PostageReceipt receipt = postOffice.sendAsync(Email.builder()
+                    .subject("Nobody home")
+                    .plainBody("Knock knock")
+                    .recipient(new Contact("jim@jimboson.com"))
+                    .from(new Contact("postage-test@abstractelemetal.com"))
+                    .build()).get(5, TimeUnit.SECONDS);
+
+            assertFalse(receipt.getSuccess());
+            assertNotNull(receipt.getThrowable());
+            assertEquals(4, receipt.getAttempts());
+            assertEquals(-1, receipt.getReplyCode());
+        }
+    }
+
+    @Test
+    public void testDrainingClose() {
+        final CaptureTransport capture = new CaptureTransport(10);
+        final SMTPSettings captured = settings();
+        captured.setTransport(capture);
+        try (PostOffice postOffice = new PostOffice(captured)) {
+            for (int i = 0; i < 2000; i++) {
+                postOffice.send(Email.builder()
+                        .subject("Captured #" + i)
+                        .plainBody("I wish I Wish I was a fish")
+                        .freemarkerTemplateFilename("test_template.ftl")
+                        .freemarkerView(new LazyEmailModel("Jim"))
+                        .recipient(new Contact("jim@jimboson.com"))
+                        .carbonCopy(new Contact("fred@fakerson.xyz"))
+                        .from(new Contact("postage-test@abstractelemetal.com"))
+                        .build());
+            }
+
+            final DrainReport report = postOffice.close(Duration.ofSeconds(10));
+            assertTrue(report.isDrained());
+            assertTrue(report.getUndelivered().isEmpty());
+            assertEquals(2000, capture.getMessageCount());
+            assertEquals(4000, capture.getRecipientCount());
+            assertEquals(10, capture.getMessages().size());
+            assertEquals(0, greenMail.getReceivedMessages().length);
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testUndrainedClose() {
+        final String directory = folder.newFolder("outbox").getPath();
+        final SMTPSettings unreachable = settings();
+        unreachable.setPort(3026);
+        unreachable.setRetryDelay(60000L);
+        unreachable.setOutboxDirectory(directory);
+
+        final List<CompletableFuture<PostageReceipt>> receipts = new ArrayList<>();
+        try (PostOffice postOffice = new PostOffice(unreachable)) {
+            for (int i = 0; i < 3; i++) {
+                receipts.add(postOffice.sendAsync(Email.builder()
+                        .subject("Nobody home #" + i)
+                        .plainBody("Knock knock")
+                        .recipient(new Contact("jim@jimboson.com"))
+                        .from(new Contact("postage-test@abstractelemetal.com"))
+                        .build()));
+            }
+
+            // every email waits a minute for its first retry
+            final DrainReport report = postOffice.close(Duration.ofMillis(500L));
+            assertFalse(report.isDrained());
+            assertEquals(3, report.getUndelivered().size());
+            assertEquals(0, report.getInFlight());
+            for (final CompletableFuture<PostageReceipt> receipt : receipts) {
+                assertFalse(receipt.get(5, TimeUnit.SECONDS).getSuccess());
+            }
+            assertTrue(postOffice.close(Duration.ofSeconds(5)).isDrained());
+        }
+
+        // the abandoned emails were left in the outbox for the next Post Office
+        final CaptureTransport capture = new CaptureTransport();
+        unreachable.setTransport(capture);
+        try (PostOffice postOffice = new PostOffice(unreachable)) {
+            assertTrue(postOffice.close(Duration.ofSeconds(5)).isDrained());
+            assertEquals(3, capture.getMessageCount());
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testAbandonedChunks() {
+        final String directory = folder.newFolder("outbox").getPath();
+        final SMTPSettings chunked = settings();
+        chunked.setMaxRecipientsPerMessage(2);
+        chunked.setRetryDelay(60000L);
+        chunked.setOutboxDirectory(directory);
+        // one domain is always busy, its chunk waits a minute for its first retry
+        chunked.setTransport(new CaptureTransport() {
+            @Override
+            public String send(final MimeMessage message, final Address[] recipients, final Priority priority)
+                    throws EmailException {
+                if (Arrays.toString(recipients).contains("@slow.com")) {
+                    throw new EmailException("Try again later");
+                }
+                return super.send(message, recipients, priority);
+            }
+        });
+
+        try (PostOffice postOffice = new PostOffice(chunked)) {
+            final CompletableFuture<PostageReceipt> receipt = postOffice.sendAsync(Email.builder()
+                    .subject("Half way")
+                    .plainBody("Some fish got away")
+                    .recipient(new Contact("a@fast.com"))
+                    .recipient(new Contact("b@fast.com"))
+                    .recipient(new Contact("c@slow.com"))
+                    .recipient(new Contact("d@slow.com"))
+                    .from(new Contact("postage-test@abstractelemetal.com"))
+                    .build());
+
+            final DrainReport report = postOffice.close(Duration.ofMillis(500L));
+            assertFalse(report.isDrained());
+            assertEquals(1, report.getUndelivered().size());
+
+            // reported once, for the chunk that was abandoned only
+            final PostageReceipt abandoned = receipt.get(5, TimeUnit.SECONDS);
+            assertFalse(abandoned.getSuccess());
+            assertNotNull(abandoned.getMessageId());
+            assertEquals(Arrays.asList("c@slow.com", "d@slow.com"), abandoned.getFailedRecipients().stream()
+                    .map(Contact::getEmail).sorted().collect(Collectors.toList()));
+        }
+
+        // half of it was delivered, replaying it would send that half twice
+        final CaptureTransport capture = new CaptureTransport();
+        chunked.setTransport(capture);
+        try (PostOffice postOffice = new PostOffice(chunked)) {
+            assertTrue(postOffice.close(Duration.ofSeconds(5)).isDrained());
+            assertEquals(0, capture.getMessageCount());
+        }
+    }
+
+    @Test
+    public void testAdaptiveConcurrency() {
+        final List<Integer> limits = new ArrayList<>();
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 8, limits::add);
+
+        // every worker busy and the relay keeping up, one more per window
+        for (int window = 0; window < 3; window++) {
+            final long fast = System.nanoTime();
+            final long[] starts = new long[10];
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = limiter.start();
+            }
+            for (final long start : starts) {
+                limiter.end(Math.max(start, fast), 250);
+            }
+        }
+        assertEquals(Arrays.asList(3, 4, 5), limits);
+
+        // latency doubling means mail queues at the relay
+        for (int i = 0; i < 10; i++) {
+            limiter.end(limiter.start() - TimeUnit.SECONDS.toNanos(1), 250);
+        }
+        assertEquals(4, limiter.getLimit());
+
+        // 4xx replies halve it, never below the minimum
+        for (int window = 0; window < 3; window++) {
+            for (int i = 0; i < 10; i++) {
+                limiter.end(limiter.start(), 421);
+            }
+        }
+        assertEquals(1, limiter.getLimit());
+
+        final SMTPSettings adaptive = settings();
+        adaptive.setConnectionPoolSize(3);
+        adaptive.setExecutorThreadCount(8);
+        adaptive.setAdaptiveConcurrency(Boolean.TRUE);
+
+        try (PostOffice postOffice = new PostOffice(adaptive)) {
+            // capped at the connections
+            assertEquals(3, postOffice.getConcurrencyLimit());
+            for (int i = 0; i < 20; i++) {
+                postOffice.send(Email.builder()
+                        .subject("Adaptive #" + i)
+                        .plainBody("As many fish as the net holds")
+                        .recipient(new Contact("jim@jimboson.com"))
+                        .from(new Contact("postage-test@abstractelemetal.com"))
+                        .build());
+            }
+
+            assertTrue(received(20));
+            assertTrue(postOffice.getConcurrencyLimit() >= 1 && postOffice.getConcurrencyLimit() <= 3);
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testIdempotentSends() {
+        final SMTPSettings idempotent = settings();
+        idempotent.setDeduplicationFile(new File(folder.getRoot(), "keys").getPath());
+
+        final Email email = Email.builder()
+                .subject("Only once")
+                .plainBody("One fish, not two fish")
+                .idempotencyKey("order-42")
+                .recipient(new Contact("jim@jimboson.com"))
+                .from(new Contact("postage-test@abstractelemetal.com"))
+                .build();
+
+        final String messageId;
+        try (PostOffice postOffice = new PostOffice(idempotent)) {
+            final CompletableFuture<PostageReceipt> first = postOffice.sendAsync(email);
+            final CompletableFuture<PostageReceipt> repeat = postOffice.sendAsync(email);
+
+            messageId = first.get(5, TimeUnit.SECONDS).getMessageId();
+            assertTrue(repeat.get(5, TimeUnit.SECONDS).getSuccess());
+            assertEquals(messageId, repeat.get().getMessageId());
+        }
+
+        // the key outlives the Post Office
+        try (PostOffice postOffice = new PostOffice(idempotent)) {
+            final PostageReceipt restarted = postOffice.sendAsync(email).get(5, TimeUnit.SECONDS);
+            assertTrue(restarted.getSuccess());
+            assertTrue(restarted.isCompact());
+            assertEquals(messageId, restarted.getMessageId());
+
+            assertTrue(postOffice.sendAsync(email.toBuilder().idempotencyKey("order-43").build())
+                    .get(5, TimeUnit.SECONDS).getSuccess());
+        }
+
+        // the relay may store the message just after answering
+        assertTrue(received(2));
+        Thread.sleep(200L);
+        assertEquals(2, greenMail.getReceivedMessages().length);
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testUncertainSendsAreNotRetried() {
+        final SMTPSettings lossy = settings();
+        lossy.setRetryDelay(10L);
+        // the relay read every message, and hung up before answering the first two
+        final AtomicInteger sent = new AtomicInteger();
+        lossy.setTransport(new CaptureTransport() {
+            @Override
+            public String send(final MimeMessage message, final Address[] recipients, final Priority priority)
+                    throws EmailException {
+                if (sent.incrementAndGet() <= 2) {
+                    throw new TransactionFailedException("No reply to the message", null, true);
+                }
+                return super.send(message, recipients, priority);
+            }
+        });
+
+        final Email email = Email.builder()
+                .subject("Maybe once")
+                .plainBody("A fish in the hand")
+                .idempotencyKey("order-44")
+                .recipient(new Contact("jim@jimboson.com"))
+                .from(new Contact("postage-test@abstractelemetal.com"))
+                .build();
+
+        try (PostOffice postOffice = new PostOffice(lossy)) {
+            final PostageReceipt uncertain = postOffice.sendAsync(email).get(5, TimeUnit.SECONDS);
+            assertFalse(uncertain.getSuccess());
+            assertEquals(1, uncertain.getAttempts());
+            assertTrue(((TransactionFailedException) uncertain.getThrowable()).isUncertain());
+
+            // a repeat is not sent either, it gets the same answer
+            assertFalse(postOffice.sendAsync(email).get(5, TimeUnit.SECONDS).getSuccess());
+            assertEquals(1, sent.get());
+
+            // without a key there is nothing to protect, the retry goes ahead
+            final PostageReceipt retried = postOffice.sendAsync(email.toBuilder().idempotencyKey(null).build())
+                    .get(5, TimeUnit.SECONDS);
+            assertTrue(retried.getSuccess());
+            assertEquals(2, retried.getAttempts());
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testCompactReceipts() {
+        final SMTPSettings compact = settings();
+        compact.setCompactReceipts(Boolean.TRUE);
+
+        final Email email = Email.builder()
+                .subject("Travelling light")
+                .plainBody("Only the fish, not the tank")
+                .freemarkerTemplateFilename("test_template.ftl")
+                .freemarkerView(new LazyEmailModel("Jim"))
+                .recipient(new Contact("jim@jimboson.com"))
+                .carbonCopy(new Contact("fred@fakerson.xyz"))
+                .metadatum("order", 42)
+                .from(new Contact("postage-test@abstractelemetal.com"))
+                .attachment(Attachment.fromBytes("fish.txt", "A fish", "blub".getBytes(StandardCharsets.UTF_8)))
+                .build();
+
+        final Email envelope = email.toEnvelope();
+        assertNull(envelope.getPlainBody());
+        assertFalse(envelope.getFreemarkerView().isPresent());
+        assertTrue(envelope.getAttachments().isEmpty());
+        assertEquals(email.getAllRecipients(), envelope.getAllRecipients());
+
+        try (PostOffice postOffice = new PostOffice(compact)) {
+            final PostageReceipt receipt = postOffice.sendAsync(email).get(5, TimeUnit.SECONDS);
+
+            assertTrue(receipt.getSuccess());
+            assertTrue(receipt.isCompact());
+            assertNull(receipt.getEmail());
+            assertNotNull(receipt.getMessageId());
+            assertEquals(42, receipt.getMetadata().get("order"));
+            assertEquals(2, receipt.getRecipientCount());
+            assertEquals(1, receipt.getAttempts());
+            assertEquals(250, receipt.getReplyCode());
+            assertTrue(receipt.getSubmitted() > 0);
+            assertTrue(receipt.getElapsed() >= 0);
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testRelayFailover() {
+        final SMTPSettings balanced = settings();
+        balanced.setExecutorThreadCount(2);
+        balanced.setRetryOnFailure(Boolean.FALSE);
+        balanced.setRelayFailureThreshold(1);
+        balanced.getRelays().add(new Relay("localhost", 3027, 1));
+        balanced.getRelays().add(new Relay("localhost", 3025, 1));
+
+        try (PostOffice postOffice = new PostOffice(balanced)) {
+            final List<Email> emails = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                emails.add(Email.builder()
+                        .subject("Detour #" + i)
+                        .plainBody("The long way round")
+                        .recipient(new Contact("jim@jimboson.com"))
+                        .from(new Contact("postage-test@abstractelemetal.com"))
+                        .build());
+            }
+
+            // nothing listens on 3027, every email fails over to GreenMail without a retry
+            postOffice.sendAll(emails).get(5, TimeUnit.SECONDS).forEach(r -> assertTrue(r.getSuccess()));
+            assertEquals(1, postOffice.getAvailableRelays());
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testRateLimit() {
+        final SMTPSettings limited = settings();
+        limited.setRateLimit(20.0);
+        limited.getDomainRateLimits().put("jimboson.com", 10.0);
+        try (PostOffice postOffice = new PostOffice(limited)) {
+            final List<Email> emails = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                emails.add(Email.builder()
+                        .subject("Slowly #" + i)
+                        .plainBody("Fish take their time")
+                        .recipient(new Contact("jim@jimboson.com"))
+                        .from(new Contact("postage-test@abstractelemetal.com"))
+                        .build());
+            }
+
+            postOffice.sendAll(emails).get(5, TimeUnit.SECONDS).forEach(r -> assertTrue(r.getSuccess()));
+            assertTrue(greenMail.waitForIncomingEmail(5000L, 6));
+        }
+
+        // jimboson.com takes one email every 100 ms, the first one right away
+        final TokenBucket domain = new TokenBucket(10.0, 1);
+        assertEquals(0L, domain.reserve());
+        for (int i = 1; i < 6; i++) {
+            assertTrue(domain.reserve() > TimeUnit.MILLISECONDS.toNanos(100L * (i - 1)));
+        }
+
+        final TokenBucket bucket = new TokenBucket(100.0, 1);
+        bucket.throttled();
+        assertEquals(50.0, bucket.getRate(), 0.0);
+        bucket.delivered();
+        assertEquals(55.0, bucket.getRate(), 0.0);
+        assertEquals(0L, bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire() > 0);
+    }
+
+    @Test
+    public void testPriorityLanes() {
+        final PriorityLanes lanes = new PriorityLanes(3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(lanes.offer(task("Blast #" + i, Priority.LOW)));
+        }
+
+        // a full bulk lane does not keep a password reset out, nor in line
+        assertFalse(lanes.offer(task("Blast #3", Priority.LOW)));
+        assertTrue(lanes.offer(task("Reset", Priority.HIGH)));
+        assertTrue(lanes.offer(task("Receipt", null)));
+
+        final List<String> order = new ArrayList<>();
+        Runnable next;
+        while ((next = lanes.poll()) != null) {
+            order.add(((SendTask) next).getEmail().getSubject());
+        }
+        assertEquals(Arrays.asList("Reset", "Receipt", "Blast #0", "Blast #1", "Blast #2"), order);
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testOverflowPolicies() {
+        final List<String> ran = new CopyOnWriteArrayList<>();
+        final List<String> rejected = new CopyOnWriteArrayList<>();
+
+        for (final OverflowPolicy policy : Arrays.asList(OverflowPolicy.REJECT, OverflowPolicy.DROP_OLDEST)) {
+            ran.clear();
+            rejected.clear();
+            final CountDownLatch busy = new CountDownLatch(1);
+            final Stage stage = overflowing(policy, busy, rejected);
+
+            stage.execute(task("First", null).then(t -> ran.add(t.getEmail().getSubject())));
+            stage.execute(task("Second", null).then(t -> ran.add(t.getEmail().getSubject())));
+            busy.countDown();
+            stage.shutdown();
+            assertTrue(stage.awaitTermination(5, TimeUnit.SECONDS));
+
+            final String first = policy == OverflowPolicy.REJECT ? "First" : "Second";
+            assertEquals(Collections.singletonList(first), ran);
+            assertEquals(Collections.singletonList(first.equals("First") ? "Second" : "First"), rejected);
+        }
+
+        // BLOCK waits for room, and gives up on a stage that closed meanwhile
+        for (final boolean close : new boolean[]{false, true}) {
+            ran.clear();
+            rejected.clear();
+            final CountDownLatch busy = new CountDownLatch(1);
+            final Stage stage = overflowing(OverflowPolicy.BLOCK, busy, rejected);
+
+            stage.execute(task("First", null).then(t -> ran.add(t.getEmail().getSubject())));
+            final Thread sender = new Thread(() -> stage.execute(task("Second", null)
+                    .then(t -> ran.add(t.getEmail().getSubject()))));
+            sender.start();
+            while (sender.getState() != Thread.State.WAITING) {
+                Thread.sleep(1L);
+            }
+            assertTrue(rejected.isEmpty());
+
+            if (close) {
+                stage.shutdown();
+            }
+            busy.countDown();
+            sender.join(5000L);
+            stage.shutdown();
+            assertTrue(stage.awaitTermination(5, TimeUnit.SECONDS));
+
+            assertTrue(ran.contains("First"));
+            if (close) {
+                // run by a worker still draining the queue, or rejected, but never stranded
+                assertTrue(ran.contains("Second") != rejected.contains("Second"));
+            } else {
+                assertEquals(Arrays.asList("First", "Second"), ran);
+                assertTrue(rejected.isEmpty());
+            }
+        }
+    }
+
+    /**
+     * A stage of one worker, kept busy until the latch opens, with room for one more email.
+     */
+    private static Stage overflowing(final OverflowPolicy policy, final CountDownLatch busy,
+                                     final List<String> rejected) throws InterruptedException {
+        final Stage stage = new Stage("overflow", 1, new PriorityLanes(1), () -> {
+        });
+        stage.setRejectedExecutionHandler(new OverflowHandler(policy,
+                (t, e) -> rejected.add(t.getEmail().getSubject())));
+        stage.execute(() -> {
+            try {
+                busy.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        while (stage.getActiveCount() == 0 || !stage.getQueue().isEmpty()) {
+            Thread.sleep(1L);
+        }
+        return stage;
+    }
+
+    private static SendTask task(final String subject, final Priority priority) {
+        return new SendTask(Email.builder()
+                .subject(subject)
+                .priority(priority)
+                .from(new Contact("postage-test@abstractelemetal.com"))
+                .build(), new CompletableFuture<>(), SendTask.NOT_JOURNALED, t -> {
+        });
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testTemplateSources() {
+        final File directory = folder.newFolder("templates");
+        final File greeting = new File(directory, "greeting.ftl");
+        Files.write(greeting.toPath(), "<p>Ahoy ${name}</p>".getBytes(StandardCharsets.UTF_8));
+
+        final SMTPSettings templated = settings();
+        templated.setTemplateDirectory(directory.getPath());
+        templated.getTemplates().put("inline.ftl", "<p>Howdy ${name}</p>");
+        templated.getTemplates().put("framed.ftl", "[#include \"inline.ftl\"]<hr/>");
+        templated.setTemplateCacheTtl(20L);
+
+        try (PostOffice postOffice = new PostOffice(templated)) {
+            postOffice.warmUp(Arrays.asList("greeting.ftl", "inline.ftl", "test_template.ftl")).get(5, TimeUnit.SECONDS);
+            try {
+                postOffice.warmUp(Arrays.asList("greeting.ftl", "missing.ftl")).join();
+                fail("A missing template should fail the warm up");
+            } catch (final CompletionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+
+            assertEquals("<p>Ahoy Jim</p>", html(postOffice, "greeting.ftl"));
+            assertEquals("<p>Howdy Jim</p>", html(postOffice, "inline.ftl"));
+            // an included template is cached by Freemarker, apart from the ones sent
+            assertEquals("<p>Howdy Jim</p><hr/>", html(postOffice, "framed.ftl"));
+            assertTrue(html(postOffice, "test_template.ftl").contains("Hello Jim"));
+
+            Files.write(greeting.toPath(), "<p>Avast ${name}</p>".getBytes(StandardCharsets.UTF_8));
+            assertTrue(greeting.setLastModified(greeting.lastModified() + 10000L));
+            Thread.sleep(200L);
+            assertEquals("<p>Avast Jim</p>", html(postOffice, "greeting.ftl"));
+        }
+    }
+
+    @Test
+    public void testRenderBuffer() {
+        final String text = "Grüße, 5 € and a \uD83D\uDC1F, but a lone \uD800 surrogate";
+        final RenderBuffer out = RenderBuffer.get(0);
+        out.write(text, 0, 10);
+        out.write(text.toCharArray(), 10, text.length() - 11);
+        out.write(text.charAt(text.length() - 1));
+
+        final ByteBuffer bytes = out.encode();
+        assertEquals(text.length(), out.length());
+        assertEquals(bytes.capacity(), bytes.remaining());
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), Arrays.copyOf(bytes.array(), bytes.remaining()));
+        out.release();
+
+        assertEquals(0, RenderBuffer.get(64).length());
+    }
+
+    /**
+     * Waits for GreenMail to hold the given number of messages. Unlike waitForIncomingEmail this does
+     * not miss messages that arrive from several connections while it starts waiting.
+     */
+    @SneakyThrows(InterruptedException.class)
+    private boolean received(final int count) {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (greenMail.getReceivedMessages().length < count) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10L);
+        }
+        return true;
+    }
+
+    @SneakyThrows(Exception.class)
+    private String html(final PostOffice postOffice, final String template) {
+        final int received = greenMail.getReceivedMessages().length;
+        assertTrue(postOffice.sendAsync(Email.builder()
+                .subject(template)
+                .freemarkerTemplateFilename(template)
+                .freemarkerView(new LazyEmailModel("Jim"))
+                .recipient(new Contact("jim@jimboson.com"))
+                .from(new Contact("postage-test@abstractelemetal.com"))
+                .build()).get(5, TimeUnit.SECONDS).getSuccess());
+
+        assertTrue(greenMail.waitForIncomingEmail(5000L, received + 1));
+        return ((String) greenMail.getReceivedMessages()[received].getContent()).trim();
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testOutboxReplay() {
+        final String directory = folder.newFolder("outbox").getPath();
+
+        // a previous run accepted this email and died before delivering it
+        try (Outbox outbox = new Outbox(Paths.get(directory), 64 * 1024, 10L)) {
+            outbox.append(Email.builder()
+                    .subject("Back from the dead")
+                    .plainBody("Still a fish")
+                    .recipient(new Contact("jim@jimboson.com", "Jim Jimboson"))
+                    .from(new Contact("postage-test@abstractelemetal.com"))
+                    .build());
+        }
+
+        final SMTPSettings recovering = settings();
+        recovering.setOutboxDirectory(directory);
+        try (PostOffice postOffice = new PostOffice(recovering)) {
+            assertTrue(postOffice.close(Duration.ofSeconds(5)).isDrained());
+            assertEquals("Back from the dead", greenMail.getReceivedMessages()[0].getSubject());
+        }
+
+        try (Outbox outbox = new Outbox(Paths.get(directory), 64 * 1024, 10L)) {
+            assertTrue(outbox.recover().isEmpty());
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testMetrics() {
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        final SMTPSettings measured = settings();
+        measured.setMetrics(new MicrometerPostageMetrics(registry));
+
+        try (PostOffice postOffice = new PostOffice(measured)) {
+            assertTrue(postOffice.sendAsync(Email.builder()
+                    .subject("Counted")
+                    .plainBody("One fish")
+                    .freemarkerTemplateFilename("test_template.ftl")
+                    .freemarkerView(new LazyEmailModel("Jim"))
+                    .recipient(new Contact("jim@jimboson.com"))
+                    .from(new Contact("postage-test@abstractelemetal.com"))
+                    .build()).get(5, TimeUnit.SECONDS).getSuccess());
+
+            for (final String phase : new String[]{"render", "mime_build", "connect", "data"}) {
+                assertEquals(1L, registry.get("postage.send.phase").tag("phase", phase).timer().count());
+            }
+            assertEquals(1.0, registry.get("postage.send.outcome").tags("outcome", "delivered", "code", "none")
+                    .counter().count(), 0.0);
+            assertEquals(0.0, registry.get("postage.queue.depth").tag("stage", "render").gauge().value(), 0.0);
+            assertEquals(1.0, registry.get("postage.connections").tag("state", "idle").gauge().value(), 0.0);
+        }
+    }
+
+    @Test(expected = AddressException.class)
+    public void testInvalidContact() {
+        Contact.toInternetAddress(new Contact("not an address"));
+    }
+
     @Test
     public void modelTests() {
         Contact contactNoDisplay = new Contact("brandon@abstractelemental.com");
@@ -102,7 +1018,23 @@ public class GeneralTest {
         assert contactNoDisplay.equals(contactWithDisplay);
         assert contactNoDisplay.compareTo(contactWithDisplay) == 0;
         assert !contactWithDisplay.equals(thirdContact);
+        assert contactNoDisplay.hashCode() == new Contact("Brandon@AbstractElemental.com").hashCode();
+
+        // built once and shared, with the display name kept
+        assert Contact.toInternetAddress(contactWithDisplay) == Contact.toInternetAddress(contactWithDisplay);
+        assert "Brandon T. Kowalski".equals(Contact.toInternetAddress(contactWithDisplay).getPersonal());
 
     }
 
+    @SneakyThrows(IOException.class)
+    private static byte[] readAll(final InputStream in) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
 }
@@ -0,0 +1,73 @@
+package com.abstractelemental.postage;
+
+import com.abstractelemental.postage.models.Contact;
+import com.abstractelemental.postage.models.Email;
+import com.abstractelemental.postage.models.Priority;
+import com.abstractelemental.postage.models.SMTPSettings;
+import com.abstractelemental.postage.transport.CaptureTransport;
+import lombok.SneakyThrows;
+import org.apache.commons.mail.EmailException;
+import org.junit.Test;
+
+import javax.mail.Address;
+import javax.mail.internet.MimeMessage;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Run by the failsafe plugin of the jdk21 profile, against the packaged multi-release jar: the Java
+ * 21 version of {@link VirtualThreads} is only loaded from there, never from target/classes.
+ */
+
+public class VirtualThreadsIT {
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testDeliversOnVirtualThreads() {
+        assertTrue("The Java 21 classes of the multi-release jar were not loaded", VirtualThreads.isSupported());
+
+        final List<Boolean> virtual = new CopyOnWriteArrayList<>();
+        final SMTPSettings settings = new SMTPSettings();
+        settings.setHost("localhost");
+        settings.setBounceEmailAddress("bounce@abstractelemental.com");
+        settings.setClassForTemplateLoading(PostOffice.class);
+        settings.setVirtualThreads(Boolean.TRUE);
+        settings.setTransport(new CaptureTransport(0, 3) {
+            @Override
+            public String send(final MimeMessage message, final Address[] recipients, final Priority priority)
+                    throws EmailException {
+                virtual.add(isVirtual(Thread.currentThread()));
+                return super.send(message, recipients, priority);
+            }
+        });
+
+        try (PostOffice postOffice = new PostOffice(settings)) {
+            for (int i = 0; i < 10; i++) {
+                postOffice.sendAsync(Email.builder()
+                        .subject("Virtual #" + i)
+                        .plainBody("Lighter than a fish")
+                        .recipient(new Contact("jim@jimboson.com"))
+                        .from(new Contact("postage-test@abstractelemetal.com"))
+                        .build());
+            }
+            assertTrue(postOffice.close(Duration.ofSeconds(5)).isDrained());
+        }
+
+        assertEquals(10, virtual.size());
+        assertFalse(virtual.contains(Boolean.FALSE));
+    }
+
+    /**
+     * Thread.isVirtual() is Java 21, the tests are built for Java 8.
+     */
+    @SneakyThrows(ReflectiveOperationException.class)
+    private static boolean isVirtual(final Thread thread) {
+        return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+
+}
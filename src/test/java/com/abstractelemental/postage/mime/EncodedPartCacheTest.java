@@ -0,0 +1,160 @@
+package com.abstractelemental.postage.mime;
+
+import lombok.SneakyThrows;
+import org.apache.commons.mail.EmailAttachment;
+import org.apache.commons.mail.HtmlEmail;
+import org.junit.Test;
+
+import javax.mail.BodyPart;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EncodedPartCacheTest {
+
+    private static final String GIF = "src/test/resources/patrick.gif";
+
+    private final Session session = Session.getInstance(new Properties());
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testSharesEncodedParts() {
+        final EncodedPartCache cache = new EncodedPartCache(1024 * 1024, false);
+
+        for (int i = 0; i < 3; i++) {
+            final MimeMessage message = build();
+            cache.share(message);
+
+            // every copy still reads back as the same email
+            final MimeMessage parsed = roundTrip(message);
+            final MimeMultipart mixed = (MimeMultipart) parsed.getContent();
+            assertTrue(html(mixed).contains("Hello Jim"));
+            assertArrayEquals(Files.readAllBytes(Paths.get(GIF)), bytes(mixed.getBodyPart(1)));
+        }
+
+        // the gif is cached right away, the text and html parts once they have been seen twice
+        assertEquals(3, cache.getMisses());
+        assertEquals(4, cache.getHits());
+        assertEquals(3, cache.getCount());
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testEvictsLeastRecentlyUsed() {
+        final long gifSize = Files.size(Paths.get(GIF));
+        final EncodedPartCache cache = new EncodedPartCache(gifSize * 2, true);
+
+        for (int i = 0; i < 3; i++) {
+            cache.share(build());
+        }
+
+        assertTrue(cache.getSize() <= gifSize * 2);
+        assertTrue(cache.getCount() >= 1);
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testSkipsPersonalisedParts() {
+        final EncodedPartCache cache = new EncodedPartCache(1024 * 1024, false);
+
+        for (int i = 0; i < 3; i++) {
+            final MimeMessage message = build("Hello Jim #" + i);
+            cache.share(message);
+            assertTrue(html((MimeMultipart) roundTrip(message).getContent()).contains("Hello Jim #" + i));
+        }
+
+        // only the gif and the shared text part, every html part was different
+        assertEquals(2, cache.getMisses());
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getCount());
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testSkipsPartsLargerThanTheCache() {
+        final EncodedPartCache cache = new EncodedPartCache(Files.size(Paths.get(GIF)), false);
+
+        for (int i = 0; i < 2; i++) {
+            final MimeMessage message = build();
+            cache.share(message);
+            assertArrayEquals(Files.readAllBytes(Paths.get(GIF)),
+                    bytes(((MimeMultipart) roundTrip(message).getContent()).getBodyPart(1)));
+        }
+
+        // the encoded gif cannot fit, so it is never encoded, only the text and html parts are
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getCount());
+    }
+
+    private MimeMessage build() {
+        return build("Hello Jim");
+    }
+
+    @SneakyThrows(Exception.class)
+    private MimeMessage build(final String greeting) {
+        final EmailAttachment attachment = new EmailAttachment();
+        attachment.setName("patrick.gif");
+        attachment.setPath(GIF);
+        attachment.setDisposition(EmailAttachment.ATTACHMENT);
+
+        final HtmlEmail email = new HtmlEmail();
+        email.setMailSession(session);
+        email.setFrom("postage-test@abstractelemetal.com");
+        email.addTo("jim@jimboson.com");
+        email.setSubject("Hello World");
+        email.setMsg("I wish I Wish I was a fish");
+        email.setHtmlMsg("<html><body><h1>" + greeting + "</h1></body></html>");
+        email.attach(attachment);
+        email.buildMimeMessage();
+        return email.getMimeMessage();
+    }
+
+    @SneakyThrows(Exception.class)
+    private MimeMessage roundTrip(final MimeMessage message) {
+        message.saveChanges();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @SneakyThrows(Exception.class)
+    private static String html(final MimeMultipart multipart) {
+        for (int i = 0; i < multipart.getCount(); i++) {
+            final BodyPart part = multipart.getBodyPart(i);
+            if (part.isMimeType("text/html")) {
+                return (String) part.getContent();
+            }
+            if (part.getContent() instanceof MimeMultipart) {
+                final String html = html((MimeMultipart) part.getContent());
+                if (html != null) {
+                    return html;
+                }
+            }
+        }
+        return null;
+    }
+
+    @SneakyThrows(Exception.class)
+    private static byte[] bytes(final BodyPart part) {
+        try (InputStream in = part.getInputStream()) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.abstractelemental.postage.outbox;
+
+import com.abstractelemental.postage.models.Contact;
+import com.abstractelemental.postage.models.Email;
+import lombok.SneakyThrows;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testRecoversUnsettledEmails() {
+        final Path directory = folder.getRoot().toPath();
+
+        try (Outbox outbox = new Outbox(directory, 64 * 1024, 10L)) {
+            final long first = outbox.append(email("first"));
+            outbox.append(email("second"));
+            final long third = outbox.append(email("third"));
+            outbox.settle(first);
+            outbox.settle(third);
+        }
+
+        try (Outbox outbox = new Outbox(directory, 64 * 1024, 10L)) {
+            final Map<Long, Email> recovered = outbox.recover();
+
+            assertEquals(1, recovered.size());
+            assertEquals("second", recovered.values().iterator().next().getSubject());
+            assertEquals(1, outbox.getPendingCount());
+
+            // ids keep counting up across restarts
+            assertTrue(outbox.append(email("fourth")) > recovered.keySet().iterator().next());
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testRollsAndCompactsSegments() {
+        final Path directory = folder.getRoot().toPath();
+        final List<Long> ids = new ArrayList<>();
+
+        try (Outbox outbox = new Outbox(directory, 4096, 10L)) {
+            for (int i = 0; i < 50; i++) {
+                ids.add(outbox.append(email("email #" + i)));
+            }
+            assertTrue(outbox.getSegmentCount() > 2);
+
+            // settle everything but the very first email, which pins the oldest segment
+            ids.subList(1, ids.size()).forEach(outbox::settle);
+            Thread.sleep(200L);
+
+            assertEquals(1, outbox.getPendingCount());
+            assertTrue(outbox.getSegmentCount() <= 2);
+        }
+
+        try (Outbox outbox = new Outbox(directory, 4096, 10L)) {
+            final Map<Long, Email> recovered = outbox.recover();
+
+            assertEquals(1, recovered.size());
+            assertEquals("email #0", recovered.get(ids.get(0)).getSubject());
+        }
+    }
+
+    private static Email email(final String subject) {
+        return Email.builder()
+                .subject(subject)
+                .plainBody("Kept safe in the outbox")
+                .recipient(new Contact("jim@jimboson.com", "Jim Jimboson"))
+                .from(new Contact("postage-test@abstractelemetal.com"))
+                .metadatum("subject", subject)
+                .build();
+    }
+
+}
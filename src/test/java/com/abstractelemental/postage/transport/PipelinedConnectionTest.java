@@ -0,0 +1,268 @@
+package com.abstractelemental.postage.transport;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.util.CRLFOutputStream;
+import lombok.SneakyThrows;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PipelinedConnectionTest {
+
+    private ServerSocket server;
+    private Thread relay;
+
+    private final List<String> commands = new CopyOnWriteArrayList<>();
+    private final AtomicInteger roundTrips = new AtomicInteger();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private volatile boolean chunking = true;
+    private volatile boolean pipelining = true;
+    private volatile boolean rejectChunk;
+
+    @Before
+    @SneakyThrows(IOException.class)
+    public void setup() {
+        server = new ServerSocket(0);
+        relay = new Thread(this::serve, "stub-relay");
+        relay.setDaemon(true);
+        relay.start();
+    }
+
+    @After
+    @SneakyThrows(Exception.class)
+    public void teardown() {
+        server.close();
+        relay.join(5000L);
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testPipelinedChunkedTransaction() {
+        final PipelinedConnection connection = open();
+        final MimeMessage message = message("Pipelined");
+        final int before = roundTrips.get();
+
+        connection.send(message, InternetAddress.parse("a@one.com, b@one.com, c@two.com"));
+
+        // the envelope as one batch, then the single BDAT LAST chunk
+        assertEquals(2, roundTrips.get() - before);
+        assertTrue(commands.contains("MAIL FROM:<bounce@abstractelemental.com>"));
+        assertTrue(commands.contains("RCPT TO:<c@two.com>"));
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        message.writeTo(new CRLFOutputStream(expected), new String[]{"Bcc", "Content-Length"});
+        assertEquals(expected.toString("US-ASCII"), body.toString("US-ASCII"));
+
+        assertTrue(connection.isAlive());
+        connection.close();
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testRejectedRecipientResetsTransaction() {
+        final PipelinedConnection connection = open();
+        final Address[] recipients = InternetAddress.parse("a@one.com, nobody@one.com");
+
+        try {
+            connection.send(message("Rejected"), recipients);
+            fail("A rejected recipient should fail the transaction");
+        } catch (final SendFailedException e) {
+            assertEquals(550, SMTPReply.codeOf(e));
+            assertEquals("nobody@one.com", e.getInvalidAddresses()[0].toString());
+        }
+        assertTrue(commands.contains("RSET"));
+        assertEquals(0, body.size());
+
+        // the connection is still good for the next message
+        connection.send(message("Accepted"), InternetAddress.parse("a@one.com"));
+        assertTrue(body.size() > 0);
+        connection.close();
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testPipelinedDataTransaction() {
+        chunking = false;
+        final PipelinedConnection connection = open();
+        final int before = roundTrips.get();
+
+        connection.send(message("Pipelined"), InternetAddress.parse("a@one.com, b@one.com, c@two.com"));
+
+        // DATA ends the envelope batch, then the message follows its 354
+        assertEquals(2, roundTrips.get() - before);
+        assertTrue(commands.contains("DATA"));
+        assertTrue(body.toString("US-ASCII").contains("in one net"));
+        connection.close();
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testRejectedRecipientAbortsPipelinedData() {
+        chunking = false;
+        final PipelinedConnection connection = open();
+
+        try {
+            connection.send(message("Rejected"), InternetAddress.parse("a@one.com, nobody@one.com"));
+            fail("A rejected recipient should fail the transaction");
+        } catch (final SendFailedException e) {
+            assertEquals(550, SMTPReply.codeOf(e));
+        }
+
+        // the relay already said 354, only hanging up keeps it from taking a message
+        assertEquals(0, body.size());
+        assertFalse(commands.contains("RSET"));
+        assertFalse(connection.isAlive());
+        connection.close();
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testRejectedChunkResetsTransaction() {
+        pipelining = false;
+        rejectChunk = true;
+        final PipelinedConnection connection = open();
+        final MimeMessage large = message("Large");
+        large.setText(String.join("\n", Collections.nCopies(10_000, "Many fish in one net")));
+        large.saveChanges();
+
+        try {
+            connection.send(large, InternetAddress.parse("a@one.com"));
+            fail("A rejected chunk should fail the transaction");
+        } catch (final SMTPSendFailedException e) {
+            // the relay refused it, it was not lost on the way
+            assertEquals(552, SMTPReply.codeOf(e));
+        }
+        assertTrue(commands.contains("RSET"));
+        assertFalse(commands.stream().anyMatch(c -> c.endsWith(" LAST")));
+
+        // the connection is still good for the next message
+        connection.send(message("Accepted"), InternetAddress.parse("a@one.com"));
+        assertTrue(body.toString("US-ASCII").contains("in one net"));
+        connection.close();
+    }
+
+    private PipelinedConnection open() throws Exception {
+        return PipelinedConnection.open("localhost", server.getLocalPort(), "test", "potato",
+                "bounce@abstractelemental.com", 5000);
+    }
+
+    private static MimeMessage message(final String subject) throws Exception {
+        final MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setFrom(new InternetAddress("postage-test@abstractelemetal.com"));
+        message.setSubject(subject);
+        message.setText("Many fish\n.\nin one net");
+        message.saveChanges();
+        return message;
+    }
+
+    /**
+     * A relay offering PIPELINING and CHUNKING (unless the test turns them off) that holds its replies
+     * until the client waits for them, counting every time it has to answer as one round trip.
+     */
+    private void serve() {
+        try (Socket socket = server.accept()) {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            final StringBuilder replies = new StringBuilder("220 stub ESMTP\r\n");
+
+            while (true) {
+                if (in.available() == 0 && replies.length() > 0) {
+                    out.write(replies.toString().getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    replies.setLength(0);
+                    roundTrips.incrementAndGet();
+                }
+
+                final String command = readLine(in);
+                if (command == null) {
+                    return;
+                }
+                commands.add(command);
+
+                if (command.startsWith("EHLO")) {
+                    replies.append("250-stub\r\n" + (pipelining ? "250-PIPELINING\r\n" : "")
+                            + (chunking ? "250-CHUNKING\r\n" : "")
+                            + "250 AUTH PLAIN LOGIN\r\n");
+                } else if (command.startsWith("AUTH")) {
+                    replies.append("235 2.7.0 Authentication successful\r\n");
+                } else if (command.startsWith("RCPT") && command.contains("nobody")) {
+                    replies.append("550 5.1.1 No such user\r\n");
+                } else if (command.startsWith("BDAT")) {
+                    final String[] args = command.split(" ");
+                    final byte[] chunk = new byte[Integer.parseInt(args[1])];
+                    for (int read = 0; read < chunk.length; ) {
+                        read += in.read(chunk, read, chunk.length - read);
+                    }
+                    if (rejectChunk && args.length == 2) {
+                        rejectChunk = false;
+                        replies.append("552 5.3.4 Message too big\r\n");
+                    } else {
+                        body.write(chunk);
+                        replies.append("250 2.0.0 Ok\r\n");
+                    }
+                } else if (command.equals("DATA")) {
+                    replies.append("354 End data with <CR><LF>.<CR><LF>\r\n");
+                    out.write(replies.toString().getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    replies.setLength(0);
+                    roundTrips.incrementAndGet();
+
+                    String line;
+                    while ((line = readLine(in)) != null && !line.equals(".")) {
+                        body.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    }
+                    if (line == null) {
+                        return;
+                    }
+                    replies.append("250 2.0.0 Ok\r\n");
+                } else if (command.equals("QUIT")) {
+                    out.write("221 2.0.0 Bye\r\n".getBytes(StandardCharsets.US_ASCII));
+                    return;
+                } else {
+                    replies.append("250 2.0.0 Ok\r\n");
+                }
+            }
+        } catch (final IOException e) {
+            // closed by the test
+        }
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                return null;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+}
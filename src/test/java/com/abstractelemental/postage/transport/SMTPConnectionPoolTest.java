@@ -0,0 +1,298 @@
+package com.abstractelemental.postage.transport;
+
+import com.abstractelemental.postage.models.Priority;
+import com.abstractelemental.postage.models.Relay;
+import com.abstractelemental.postage.models.SMTPSettings;
+import lombok.SneakyThrows;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SMTPConnectionPoolTest {
+
+    private ServerSocket server;
+    private Thread relay;
+
+    private final List<String> bodies = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ExecutorService senders = Executors.newCachedThreadPool();
+
+    /**
+     * The relay hangs up without a reply once it has read the body with this number, or -1.
+     */
+    private volatile int dropAfterBody = -1;
+
+    /**
+     * The relay hangs up right after accepting the body with this number, or -1.
+     */
+    private volatile int closeAfterBody = -1;
+
+    /**
+     * The relay holds back its reply to the first body until this is counted down.
+     */
+    private final CountDownLatch held = new CountDownLatch(1);
+    private volatile boolean holdFirstBody;
+
+    @Before
+    @SneakyThrows(IOException.class)
+    public void setup() {
+        server = new ServerSocket(0);
+        relay = new Thread(this::serve, "stub-relay");
+        relay.setDaemon(true);
+        relay.start();
+    }
+
+    @After
+    @SneakyThrows(Exception.class)
+    public void teardown() {
+        held.countDown();
+        senders.shutdownNow();
+        server.close();
+        relay.join(5000L);
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testDroppedAfterBodyIsNotResent() {
+        for (final boolean nativeTransport : new boolean[]{false, true}) {
+            bodies.clear();
+            connections.set(0);
+            dropAfterBody = 2;
+
+            try (SMTPConnectionPool pool = new SMTPConnectionPool(settings(nativeTransport))) {
+                pool.send(message("Delivered"));
+                try {
+                    // the relay may have taken it, sending it again could deliver it twice
+                    pool.send(message("Lost reply"));
+                    fail("A send without a reply to its body should fail");
+                } catch (final TransactionFailedException e) {
+                    assertTrue(e.isUncertain());
+                }
+            }
+
+            assertEquals(2, bodies.size());
+            assertEquals(1, connections.get());
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testDroppedBeforeMailIsResent() {
+        for (final boolean nativeTransport : new boolean[]{false, true}) {
+            bodies.clear();
+            connections.set(0);
+            closeAfterBody = 1;
+
+            try (SMTPConnectionPool pool = new SMTPConnectionPool(settings(nativeTransport))) {
+                pool.send(message("Delivered"));
+                // the pooled connection is gone before MAIL FROM, nothing was sent on it
+                pool.send(message("Resent"));
+            }
+
+            assertEquals(2, bodies.size());
+            assertEquals(2, connections.get());
+        }
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testRouterDoesNotFailOverAfterBody() {
+        dropAfterBody = 1;
+        final SMTPSettings settings = settings(true);
+        settings.setRelays(Arrays.asList(new Relay("localhost", server.getLocalPort(), 1),
+                new Relay("localhost", server.getLocalPort(), 1)));
+
+        try (SMTPRouter router = new SMTPRouter(settings)) {
+            router.send(message("Lost reply"), Priority.NORMAL);
+            fail("A send without a reply to its body should not be failed over");
+        } catch (final TransactionFailedException e) {
+            assertTrue(e.isUncertain());
+        }
+
+        // the second relay never saw it
+        assertEquals(1, bodies.size());
+        assertEquals(1, connections.get());
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testReservedConnections() {
+        holdFirstBody = true;
+        final SMTPSettings settings = settings(true);
+        settings.setConnectionPoolSize(2);
+        settings.setReservedConnections(1);
+
+        try (SMTPConnectionPool pool = new SMTPConnectionPool(settings)) {
+            final CompletableFuture<String> busy = sendAsync(pool, "Held", Priority.NORMAL);
+            while (bodies.isEmpty()) {
+                Thread.sleep(10L);
+            }
+
+            // the only shared connection is busy, the reserved one is kept for high priority
+            final CompletableFuture<String> waiting = sendAsync(pool, "Waiting", Priority.NORMAL);
+            Thread.sleep(50L);
+            pool.send(message("Urgent"), Priority.HIGH);
+            Thread.sleep(100L);
+            assertFalse(waiting.isDone());
+            assertEquals(2, bodies.size());
+
+            held.countDown();
+            busy.get(5, TimeUnit.SECONDS);
+            waiting.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(3, bodies.size());
+        assertEquals(2, connections.get());
+    }
+
+    @Test
+    @SneakyThrows(Exception.class)
+    public void testDefaultPoolSize() {
+        final SMTPSettings settings = settings(true);
+        settings.setExecutorThreadCount(4);
+
+        // one connection for every delivery thread unless told otherwise
+        try (SMTPConnectionPool pool = new SMTPConnectionPool(settings)) {
+            assertEquals(4, pool.getPoolSize());
+        }
+        settings.setConnectionPoolSize(2);
+        try (SMTPConnectionPool pool = new SMTPConnectionPool(settings)) {
+            assertEquals(2, pool.getPoolSize());
+        }
+    }
+
+    private CompletableFuture<String> sendAsync(final SMTPConnectionPool pool, final String subject,
+                                                       final Priority priority) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.send(message(subject), priority);
+            } catch (final Exception e) {
+                throw new CompletionException(e);
+            }
+        }, senders);
+    }
+
+    private SMTPSettings settings(final boolean nativeTransport) {
+        final SMTPSettings settings = new SMTPSettings();
+        settings.setHost("localhost");
+        settings.setPort(server.getLocalPort());
+        settings.setUsername("test");
+        settings.setPassword("potato");
+        settings.setBounceEmailAddress("bounce@abstractelemental.com");
+        settings.setNativeTransport(nativeTransport);
+        return settings;
+    }
+
+    private static MimeMessage message(final String subject) throws Exception {
+        final MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setFrom(new InternetAddress("postage-test@abstractelemetal.com"));
+        message.setRecipients(MimeMessage.RecipientType.TO, "jim@jimboson.com");
+        message.setSubject(subject);
+        message.setText("Many fish in one net");
+        return message;
+    }
+
+    private void serve() {
+        try {
+            while (true) {
+                final Socket socket = server.accept();
+                connections.incrementAndGet();
+                final Thread session = new Thread(() -> converse(socket), "stub-relay-session");
+                session.setDaemon(true);
+                session.start();
+            }
+        } catch (final IOException e) {
+            // closed by the test
+        }
+    }
+
+    /**
+     * A relay offering PIPELINING but not CHUNKING, so both transports send with DATA.
+     */
+    private void converse(final Socket socket) {
+        try (Socket s = socket) {
+            final InputStream in = new BufferedInputStream(s.getInputStream());
+            final OutputStream out = s.getOutputStream();
+            reply(out, "220 stub ESMTP");
+
+            String command;
+            while ((command = readLine(in)) != null) {
+                if (command.startsWith("EHLO")) {
+                    reply(out, "250-stub\r\n250 PIPELINING");
+                } else if (command.equals("DATA")) {
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    final StringBuilder body = new StringBuilder();
+                    String line;
+                    while ((line = readLine(in)) != null && !line.equals(".")) {
+                        body.append(line).append('\n');
+                    }
+                    bodies.add(body.toString());
+                    if (bodies.size() == dropAfterBody) {
+                        return;
+                    }
+                    if (holdFirstBody && bodies.size() == 1) {
+                        held.await();
+                    }
+                    reply(out, "250 2.0.0 Ok");
+                    if (bodies.size() == closeAfterBody) {
+                        return;
+                    }
+                } else if (command.equals("QUIT")) {
+                    reply(out, "221 2.0.0 Bye");
+                    return;
+                } else {
+                    reply(out, "250 2.0.0 Ok");
+                }
+            }
+        } catch (final IOException | InterruptedException e) {
+            // the client hung up
+        }
+    }
+
+    private static void reply(final OutputStream out, final String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                return null;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+}